@@ -96,6 +96,12 @@ endpoint.files.create = function(params, body) {
     });
 };
 
+endpoint.files.crawlInventory = function(folderId, options) {
+    options = options || {};
+    options.folderId = folderId;
+    return endpoint._crawlInventory(options);
+};
+
 endpoint.files.delete = function(fileId, params) {
     return endpoint.delete({
         path: '/files/'+fileId,
@@ -103,29 +109,54 @@ endpoint.files.delete = function(fileId, params) {
     });
 };
 
-endpoint.files.downloadFile = function(fileId) {
-    return endpoint._downloadFile({
-        fileId: fileId
-    });
+endpoint.files.downloadFile = function(fileId, options) {
+    options = options || {};
+    options.fileId = fileId;
+    return endpoint._downloadFile(options);
 };
 
-endpoint.files.downloadExportLink = function(fileId, mimeType) {
-    return endpoint._downloadExportLink({
-        fileId: fileId,
-        mimeType: mimeType
+endpoint.files.downloadFiles = function(fileIds, workers) {
+    var items = [];
+    for (var i = 0; i < fileIds.length; i++) {
+        items.push({fileId: fileIds[i]});
+    }
+    return endpoint._downloadFiles({
+        items: items,
+        workers: workers
     });
 };
 
+endpoint.files.downloadExportLink = function(fileId, mimeType, exportMimeType, options) {
+    options = options || {};
+    options.fileId = fileId;
+    options.mimeType = mimeType;
+    options.exportMimeType = exportMimeType;
+    return endpoint._downloadExportLink(options);
+};
+
+endpoint.files.downloadFolderAsZip = function(folderId, options) {
+    options = options || {};
+    options.folderId = folderId;
+    return endpoint._downloadFolderAsZip(options);
+};
+
 endpoint.files.emptyTrash = function() {
     return endpoint.delete('/files/trash');
 };
 
-endpoint.files.export = function(fileId, path, params) {
-    return endpoint._exportFile({
-        fileId: fileId,
-        path:  path ? path : '/files/'+fileId+'/export',
-        params: params
-    });
+endpoint.files.export = function(fileId, path, params, options) {
+    options = options || {};
+    options.fileId = fileId;
+    options.path = path ? path : '/files/'+fileId+'/export';
+    options.params = params;
+    return endpoint._exportFile(options);
+};
+
+endpoint.files.exportFormats = function(fileId, formats, options) {
+    options = options || {};
+    options.fileId = fileId;
+    options.formats = formats;
+    return endpoint._exportFormats(options);
 };
 
 endpoint.files.generateIds = function(params) {
@@ -157,6 +188,38 @@ endpoint.files.update = function(fileId, params, body) {
     });
 };
 
+endpoint.files.mirrorFolder = function(folderId, options) {
+    options = options || {};
+    options.folderId = folderId;
+    return endpoint._mirrorFolder(options);
+};
+
+endpoint.files.searchAllDrives = function(q, options) {
+    options = options || {};
+    options.q = q;
+    return endpoint._searchAllDrives(options);
+};
+
+endpoint.files.reserveIds = function(count) {
+    return endpoint._generateFileIds({
+        count: count || 1
+    }).ids;
+};
+
+endpoint.files.uploadFileWithId = function(driveFileId, slingrFileId, name, mimeType, folderId, originalMimeType) {
+    if (!originalMimeType) {
+        originalMimeType = mimeType;
+    }
+    return endpoint._uploadFile({
+        driveFileId: driveFileId,
+        fileId: slingrFileId,
+        name: name,
+        mimeType: mimeType,
+        folderId: folderId,
+        originalMimeType: originalMimeType
+    });
+};
+
 endpoint.files.uploadFile = function(slingrFileId, name, mimeType, folderId, originalMimeType) {
     if (!originalMimeType) {
         originalMimeType = mimeType;
@@ -170,6 +233,33 @@ endpoint.files.uploadFile = function(slingrFileId, name, mimeType, folderId, ori
     });
 };
 
+endpoint.files.uploadFiles = function(items, workers) {
+    for (var i = 0; i < items.length; i++) {
+        if (!items[i].originalMimeType) {
+            items[i].originalMimeType = items[i].mimeType;
+        }
+    }
+    return endpoint._uploadFiles({
+        items: items,
+        workers: workers
+    });
+};
+
+endpoint.files.uploadFileDeduplicated = function(slingrFileId, name, mimeType, folderId, originalMimeType, updateExisting) {
+    if (!originalMimeType) {
+        originalMimeType = mimeType;
+    }
+    return endpoint._uploadFile({
+        fileId: slingrFileId,
+        name: name,
+        mimeType: mimeType,
+        folderId: folderId,
+        originalMimeType: originalMimeType,
+        deduplicate: true,
+        updateExisting: !!updateExisting
+    });
+};
+
 endpoint.files.watch = function(fileId, params, body) {
     return endpoint.patch({
         path: '/files/'+fileId+'/watch',
@@ -340,6 +430,29 @@ endpoint.drives.update = function(driveId, params, body) {
     });
 };
 
+// Jobs
+
+endpoint.jobs = {};
+
+endpoint.jobs.submit = function(type, params) {
+    return endpoint._submitJob({
+        type: type,
+        params: params || {}
+    });
+};
+
+endpoint.jobs.get = function(jobId) {
+    return endpoint._getJob({
+        jobId: jobId
+    });
+};
+
+endpoint.jobs.cancel = function(jobId) {
+    return endpoint._cancelJob({
+        jobId: jobId
+    });
+};
+
 /////////////////////
 // Public API - Generic Functions
 /////////////////////
@@ -369,6 +482,18 @@ endpoint.delete = function (url) {
     return endpoint._deleteRequest(options);
 };
 
+endpoint.metrics = function() {
+    return endpoint._getMetrics({});
+};
+
+endpoint.fieldMaskReport = function() {
+    return endpoint._getFieldMaskReport({});
+};
+
+endpoint.status = function() {
+    return endpoint._getStatus({});
+};
+
 /////////////////////
 // Utilities
 /////////////////////
@@ -1,9 +1,10 @@
 package com.google.api.services.drive;
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.GenericJson;
-import com.google.api.client.json.jackson.JacksonFactory;
+import io.slingr.endpoints.googledrive.services.utils.DeadlineRequestInitializer;
+import io.slingr.endpoints.googledrive.services.utils.HttpTransports;
 import io.slingr.endpoints.utils.Json;
 
 import java.io.IOException;
@@ -16,10 +17,14 @@ import java.security.GeneralSecurityException;
 public class GenericGoogleDriveService extends com.google.api.services.drive.Drive {
 
     public GenericGoogleDriveService(String applicationName, String token) throws GeneralSecurityException, IOException {
+        this(applicationName, token, HttpTransports.trusted());
+    }
+
+    public GenericGoogleDriveService(String applicationName, String token, HttpTransport transport) {
         super(new Builder(
-                GoogleNetHttpTransport.newTrustedTransport(),
-                new JacksonFactory(),
-                new GoogleCredential().setAccessToken(token)
+                transport,
+                HttpTransports.jsonFactory(),
+                new DeadlineRequestInitializer(new GoogleCredential().setAccessToken(token))
         ).setApplicationName(applicationName));
     }
 
@@ -7,7 +7,17 @@ import io.slingr.endpoints.exceptions.EndpointException;
 import io.slingr.endpoints.exceptions.ErrorCode;
 import io.slingr.endpoints.framework.annotations.*;
 import io.slingr.endpoints.googledrive.services.*;
+import io.slingr.endpoints.googledrive.services.entities.ApiException;
 import io.slingr.endpoints.googledrive.services.entities.ValidToken;
+import io.slingr.endpoints.googledrive.services.utils.Deadline;
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.googledrive.services.utils.HttpTransports;
+import io.slingr.endpoints.googledrive.services.utils.InlineBuffer;
+import io.slingr.endpoints.googledrive.services.utils.MimeExtensions;
+import io.slingr.endpoints.googledrive.services.utils.SpooledContent;
+import io.slingr.endpoints.googledrive.services.utils.StreamUtils;
+import io.slingr.endpoints.googledrive.services.utils.Tracer;
+import io.slingr.endpoints.googledrive.services.utils.TransferBudget;
 import io.slingr.endpoints.services.AppLogs;
 import io.slingr.endpoints.services.datastores.DataStore;
 import io.slingr.endpoints.services.exchange.ReservedName;
@@ -15,14 +25,27 @@ import io.slingr.endpoints.services.rest.DownloadedFile;
 import io.slingr.endpoints.utils.Json;
 import io.slingr.endpoints.ws.exchange.FunctionRequest;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.tika.mime.MimeType;
-import org.apache.tika.mime.MimeTypes;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * <p>Google Drive endpoint
@@ -50,6 +73,57 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
     private static final String PROPERTY_TIMEZONE = "timezone";
     private static final String PROPERTY_ERROR = "error";
 
+    private static final String PDF_MIME_TYPE = "application/pdf";
+
+    // folder archive defaults
+    private static final int ZIP_MAX_ENTRIES = 5000;
+    private static final long ZIP_MAX_TOTAL_SIZE = 2L * 1024 * 1024 * 1024;
+    private static final long ZIP_MAX_FILE_SIZE = 512L * 1024 * 1024;
+    private static final int ZIP_PREFETCH = 4;
+    private static final int ZIP_MAX_PREFETCH = 16;
+    private static final int PIPE_BUFFER_SIZE = 256 * 1024;
+
+    private static final long DEFAULT_ARTIFACT_CACHE_SIZE = 256;
+    // seconds
+    private static final long DEFAULT_QUERY_CACHE_TTL = 60;
+    // KB
+    private static final long DEFAULT_INLINE_MAX_SIZE = 256;
+    private static final long INLINE_MAX_SIZE_LIMIT = 10 * 1024;
+    // percentage of the reads
+    private static final double HEDGE_MAX_BUDGET = 50;
+    // seconds
+    private static final long DEFAULT_REQUEST_TIMEOUT = 300;
+    private static final long TOKEN_REVALIDATION_INTERVAL = 60 * 1000;
+
+    // bulk transfer defaults
+    private static final int BULK_WORKERS = 4;
+    private static final int BULK_MAX_WORKERS = 16;
+    private static final long BULK_UNKNOWN_SIZE = 10L * 1024 * 1024;
+
+    // inventory crawl defaults
+    private static final int INVENTORY_WORKERS = 4;
+    private static final int INVENTORY_MAX_WORKERS = 16;
+    private static final String INVENTORY_CHECKPOINT_PREFIX = "inventory-";
+    private static final String MIRROR_MANIFEST_PREFIX = "mirror-";
+
+    // multi-format export
+    private static final int EXPORT_WORKERS = 3;
+    private static final int EXPORT_MAX_WORKERS = 8;
+
+    // search across drives
+    private static final int SEARCH_WORKERS = 8;
+    private static final int SEARCH_MAX_WORKERS = 16;
+    private static final int SEARCH_PAGE_SIZE = 100;
+    private static final int SEARCH_MAX_PAGE_SIZE = 1000;
+
+    // background jobs
+    private static final int JOB_WORKERS = 2;
+    private static final int JOB_MAX_QUEUED = 50;
+    private static final int JOB_BATCH_SIZE = 20;
+    // time kept in each slice of a job to save its checkpoint
+    private static final long JOB_SLICE_MARGIN = 30 * 1000;
+    private static final String JOB_FINISHED_EVENT = "jobFinished";
+
     @ApplicationLogger
     private AppLogs appLogs;
 
@@ -71,6 +145,42 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
     @EndpointProperty
     private String javascriptOrigin;
 
+    @EndpointProperty
+    private String artifactCacheSize;
+
+    @EndpointProperty
+    private String queryCacheTtl;
+
+    @EndpointProperty
+    private String inlineMaxSize;
+
+    @EndpointProperty
+    private String warmUp;
+
+    @EndpointProperty
+    private String httpTransport;
+
+    @EndpointProperty
+    private String fieldMaskMode;
+
+    @EndpointProperty
+    private String fieldMasks;
+
+    @EndpointProperty
+    private String requestTimeout;
+
+    @EndpointProperty
+    private String bulkheadLimits;
+
+    @EndpointProperty
+    private String traceThreshold;
+
+    @EndpointProperty
+    private String traceExporter;
+
+    @EndpointProperty
+    private String hedgeBudget;
+
     private String defaultRedirectUri = "";
 
     @EndpointConfiguration
@@ -78,16 +188,180 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
 
     private GoogleClient client = null;
 
+    private final StartupWarmUp startup = new StartupWarmUp();
+
+    // tokens are checked again against the data store after a while, as other instances can update them
+    private final TokenRegistry tokens = new TokenRegistry(TOKEN_REVALIDATION_INTERVAL);
+
+    private final TokenRefreshCoordinator tokenRefresh = new TokenRefreshCoordinator(new TokenRefreshCoordinator.UserStore() {
+        @Override
+        public Json find(String userId) {
+            try (Tracer.Span span = Tracer.span("datastore.find")) {
+                return googleDriveStore.findById(userId);
+            }
+        }
+
+        @Override
+        public Json save(Json configuration) {
+            try (Tracer.Span span = Tracer.span("datastore.save")) {
+                return googleDriveStore.save(configuration);
+            }
+        }
+    }, UUID.randomUUID().toString());
+
+    // inventory checkpoints are kept next to the user configurations, so any instance can resume a crawl
+    private final InventoryCrawler.Checkpoints inventoryCheckpoints = new InventoryCrawler.Checkpoints() {
+        @Override
+        public Json load(String id) {
+            return googleDriveStore.findById(id);
+        }
+
+        @Override
+        public void save(Json checkpoint) {
+            googleDriveStore.save(checkpoint);
+        }
+
+        @Override
+        public void remove(String id) {
+            googleDriveStore.removeById(id);
+        }
+    };
+
+    private final FolderMirror.ManifestStore mirrorManifests = new FolderMirror.ManifestStore() {
+        @Override
+        public Json load(String id) {
+            return googleDriveStore.findById(id);
+        }
+
+        @Override
+        public void save(Json manifest) {
+            googleDriveStore.save(manifest);
+        }
+    };
+
+    // users with invalid credentials fail fast until the circuit lets a probe through
+    private final CredentialCircuitBreaker credentialBreaker = new CredentialCircuitBreaker();
+
+    private FieldMaskPolicy fieldMaskPolicy = null;
+
+    // separate limits for metadata, mutation, transfer and auth operations
+    private Bulkheads bulkheads = new Bulkheads(null);
+
+    private ArtifactCache artifactCache = null;
+
+    // files up to this size in bytes can be returned in the response instead of as Slingr files
+    private long inlineLimit = DEFAULT_INLINE_MAX_SIZE * 1024;
+
+    private final FolderHashCache folderHashes = new FolderHashCache();
+
+    // results of files.list searches, dropped when the changes feed shows they changed
+    private QueryCache queryCache = null;
+
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    // second attempts of slow metadata reads, disabled unless a budget is configured
+    private RequestHedger hedger = null;
+
+    private final ExecutorService backgroundExecutor = Executors.newFixedThreadPool(2);
+
+    // profiles of the connected users
+    private final UserInfoCache userInformation = new UserInfoCache(backgroundExecutor);
+
+    private final FileIdPool fileIds = new FileIdPool(backgroundExecutor);
+
+    private final ExecutorService transferExecutor = Executors.newCachedThreadPool();
+
+    private JobManager jobs = null;
+
+    // bytes transferred at the same time by bulk functions, bounded by the heap of the profile
+    private final TransferBudget transferBudget = new TransferBudget(Math.max(8L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4));
+
     @Override
     public void endpointStarted() {
-        clientType = clientType != null && Arrays.asList("single", "multi").contains(clientType.toLowerCase()) ? clientType.toLowerCase() : "single";
-        this.defaultRedirectUri = (
-                properties().isLocalDeployment() ? "http://" : "https://"+
-                        ("multi".equalsIgnoreCase(clientType) ? "" : properties().getApplicationName()+".")
-        )+properties().getBaseDomain()+"/callback";
+        startup.phase("configuration", () -> {
+            HttpTransports.configure(httpTransport);
+            clientType = clientType != null && Arrays.asList("single", "multi").contains(clientType.toLowerCase()) ? clientType.toLowerCase() : "single";
+            this.defaultRedirectUri = (
+                    properties().isLocalDeployment() ? "http://" : "https://"+
+                            ("multi".equalsIgnoreCase(clientType) ? "" : properties().getApplicationName()+".")
+            )+properties().getBaseDomain()+"/callback";
+        });
+
+        // default field masks for read requests
+        fieldMaskPolicy = FieldMaskPolicy.fromConfiguration(fieldMaskMode, fieldMasks);
+
+        bulkheads = Bulkheads.fromConfiguration(bulkheadLimits);
+
+        // traces of the calls slower than the threshold (ms), disabled when it is empty
+        final long threshold = NumberUtils.toLong(traceThreshold, -1);
+        Tracer.configure(threshold, "file".equalsIgnoreCase(traceExporter)
+                ? Paths.get(System.getProperty("java.io.tmpdir"), "google-drive-traces.jsonl") : null);
 
         // google client
         client = new GoogleClient(properties().getApplicationName(), clientId, clientSecret, redirectUri, ServiceType.values());
+        client.setAuthBulkhead(bulkheads.get(Bulkheads.OperationClass.AUTH));
+
+        // cache of downloaded and exported files, size in MB
+        startup.phase("artifactCache", () -> {
+            final long cacheSize = NumberUtils.toLong(artifactCacheSize, DEFAULT_ARTIFACT_CACHE_SIZE);
+            if (cacheSize > 0) {
+                artifactCache = new ArtifactCache(Paths.get(System.getProperty("java.io.tmpdir"), "google-drive-artifacts"), cacheSize * 1024 * 1024);
+            }
+        });
+
+        // jobs left by stopped instances are resumed from their checkpoints
+        startup.phase("jobs", () -> {
+            jobs = new JobManager(new JobManager.Store() {
+                @Override
+                public Json find(String id) {
+                    return googleDriveStore.findById(id);
+                }
+
+                @Override
+                public void save(Json record) {
+                    googleDriveStore.save(record);
+                }
+            }, tokenRefresh.getInstanceId(), (userId, job) -> events().send(JOB_FINISHED_EVENT, job, null, userId, null), JOB_WORKERS, JOB_MAX_QUEUED);
+            registerJobTasks(jobs);
+            jobs.start();
+        });
+
+        final double hedgePercentage = Math.min(NumberUtils.toDouble(hedgeBudget, 0), HEDGE_MAX_BUDGET);
+        if (hedgePercentage > 0) {
+            hedger = new RequestHedger(hedgePercentage / 100);
+        }
+
+        inlineLimit = Math.max(0, Math.min(NumberUtils.toLong(inlineMaxSize, DEFAULT_INLINE_MAX_SIZE), INLINE_MAX_SIZE_LIMIT)) * 1024;
+
+        final long queryTtl = NumberUtils.toLong(queryCacheTtl, DEFAULT_QUERY_CACHE_TTL);
+        if (queryTtl > 0) {
+            queryCache = new QueryCache(queryTtl * 1000);
+        }
+
+        // optional warm-up, done in background so the endpoint starts receiving requests right away
+        if (!"disabled".equalsIgnoreCase(warmUp)) {
+            final Thread warmUpThread = new Thread(() -> {
+                startup.warmUp(true);
+                logger.info(String.format("Endpoint warm-up finished [%s]", startup.toJson()));
+            }, "google-drive-warm-up");
+            warmUpThread.setDaemon(true);
+            warmUpThread.start();
+        } else {
+            startup.ready();
+        }
+    }
+
+    @Override
+    public void endpointStopped(String cause) {
+        if (jobs != null) {
+            jobs.stop();
+        }
+        if (hedger != null) {
+            hedger.shutdown();
+        }
+        transferExecutor.shutdownNow();
+        backgroundExecutor.shutdownNow();
+        HttpTransports.shutdown();
     }
 
     @EndpointFunction(name = ReservedName.CONNECT_USER)
@@ -114,11 +388,13 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
         configuration.set(PROPERTY_TIMEZONE, null);
 
         boolean connected = false;
+        long tokenVersion = 0;
         try {
             // check stored configuration
             try {
                 final Json storedConfiguration = googleDriveStore.findById(userId);
                 if (storedConfiguration != null) {
+                    tokenVersion = TokenRefreshCoordinator.version(storedConfiguration);
                     configuration.setIfNotNull(PROPERTY_RESULT, storedConfiguration.string(PROPERTY_RESULT));
                     configuration.setIfNotNull(PROPERTY_NAME, storedConfiguration.string(PROPERTY_NAME));
                     configuration.setIfNotNull(PROPERTY_PICTURE, storedConfiguration.string(PROPERTY_PICTURE));
@@ -181,6 +457,7 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
                 if(service != null) {
                     Json user = service.getUserInformation();
                     if(user != null && StringUtils.isBlank(user.string(PROPERTY_TOKEN))){
+                        userInformation.put(userId, user);
                         configuration.set(PROPERTY_RESULT, "Connection established as " + user.string(PROPERTY_NAME) + ".");
                         configuration.set(PROPERTY_NAME, user.string(PROPERTY_NAME));
                         configuration.set(PROPERTY_PICTURE, user.string(PROPERTY_PICTURE));
@@ -195,8 +472,12 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
         }
 
         configuration.set("_id", userId);
+        // a new version, so a refresh in progress on another instance does not overwrite it
+        configuration.set(TokenRefreshCoordinator.TOKEN_VERSION, tokenVersion + 1);
         final Json conf = googleDriveStore.save(configuration);
         if(connected) {
+            tokens.put(userId, configuration);
+            credentialBreaker.reset(userId);
             final Json event = Json.map()
                     .setIfNotNull("userId", userId)
                     .setIfNotNull("userEmail", request.getUserEmail());
@@ -256,6 +537,13 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
         configuration.set(PROPERTY_TIMEZONE, null);
 
         if(StringUtils.isNotBlank(userId)) {
+            tokens.remove(userId);
+            userInformation.remove(userId);
+            fileIds.remove(userId);
+            if (queryCache != null) {
+                queryCache.remove(userId);
+            }
+
             // revoke tokens
             if(revokeToken) {
                 final Json storedConfiguration = getUserConfiguration(userId);
@@ -323,6 +611,8 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
     public void removeUserConfiguration(String userId){
         if(StringUtils.isNotBlank(userId)){
             logger.debug(String.format("Remove user configuration [%s]", userId));
+            tokens.remove(userId);
+            userInformation.remove(userId);
             try {
                 // remove last user configuration
                 googleDriveStore.removeById(userId);
@@ -340,7 +630,9 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
             logger.debug(String.format("Checking user configuration [%s]", userId));
             try {
                 // check last user configuration
-                response = googleDriveStore.findById(userId);
+                try (Tracer.Span span = Tracer.span("datastore.find")) {
+                    response = googleDriveStore.findById(userId);
+                }
 
                 if(response != null && !response.isEmpty()) {
                     logger.info(String.format("User configuration [%s] was found", userId));
@@ -355,21 +647,10 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
     }
 
     public void checkDisconnection(final String userId, final HttpResponseException httpException, final String functionId){
-        final StringBuilder err = new StringBuilder();
-        err.append(httpException.getStatusCode()).append(" ");
-        if(httpException.getStatusMessage() != null){
-            err.append(" - ").append(httpException.getStatusMessage());
-        }
-        if(httpException.getContent() != null){
-            err.append(" - ").append(httpException.getContent());
-        }
-        if(httpException.getMessage() != null){
-            err.append(" - ").append(httpException.getMessage());
-        }
-        final String message = err.toString().toLowerCase();
-
-        if(message.contains("invalid credentials") || message.contains("authError")){
-            if(refreshUserCredentialsById(userId) == null) {
+        if(GoogleClient.isCredentialsError(httpException)){
+            final TokenRegistry.Entry rejected = tokens.get(userId);
+            tokens.remove(userId);
+            if(refreshUserCredentialsById(userId, rejected != null ? rejected.getToken() : null) == null) {
                 // Invalid Credentials and it is not possible to generate a new token, disconnect user
                 logger.info(String.format("Invalid credentials for user [%s] - disconnecting", userId));
                 disconnectUser(userId, null, functionId, true);
@@ -381,16 +662,15 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
         if(StringUtils.isNotBlank(userId)) {
             Json conf = getUserConfiguration(userId);
             if (conf != null && !conf.isEmpty()) {
-                Json checkedToken = client.checkTokenFromConfiguration(userId, conf);
-                if (StringUtils.isNotBlank(checkedToken.string(PROPERTY_ERROR))) {
-                    logger.info(String.format("Invalid token for user [%s]: %s", userId, checkedToken.string(PROPERTY_ERROR)));
-                } else {
-                    conf.set(PROPERTY_TOKEN, checkedToken.string(PROPERTY_TOKEN));
-                    conf.set(PROPERTY_REFRESH_TOKEN, checkedToken.string(PROPERTY_REFRESH_TOKEN));
-                    conf.set(PROPERTY_EXPIRATION_TIME, checkedToken.string(PROPERTY_EXPIRATION_TIME));
-
-                    return saveUserConfiguration(userId, conf, false);
+                final ValidToken storedToken = new ValidToken(conf.string(PROPERTY_TOKEN), conf.string(PROPERTY_REFRESH_TOKEN), conf.string(PROPERTY_EXPIRATION_TIME));
+                if (storedToken.isExpired()) {
+                    // the configuration is only written when the token is regenerated
+                    conf = refreshToken(userId, null);
+                }
+                if (conf != null) {
+                    tokens.put(userId, conf);
                 }
+                return conf;
             } else {
                 logger.info(String.format("User [%s] is not connected", userId));
             }
@@ -404,30 +684,36 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
         try {
             return checkUserById(userId);
         } catch (Exception ex){
-            if(ex.toString().contains("\\\"invalid_grant\\\"") || ex.toString().contains("Token has been revoked.") ||
-                    ex.toString().contains("Token has been expired or revoked.") || ex.toString().contains("Error renewing the token [401 Unauthorized]")){
-                // token was revoked on Google service
-                logger.info(String.format("Token for user [%s] has been revoked. Disconnecting user.", userId));
-                disconnectUser(userId, null, functionId, false);
+            if(GoogleClient.isInvalidCredentials(ex)){
+                // token was revoked on Google service, only the first failure disconnects the user
+                tokens.remove(userId);
+                if(credentialBreaker.onCredentialFailure(userId)) {
+                    logger.info(String.format("Token for user [%s] has been revoked. Disconnecting user.", userId));
+                    disconnectUser(userId, null, functionId, false);
+                }
             }
             throw ex;
         }
     }
 
     public Json refreshUserCredentialsById(final String userId){
-        if(StringUtils.isNotBlank(userId)) {
-            Json conf = getUserConfiguration(userId);
-            if (conf != null && !conf.isEmpty()) {
-                Json checkedToken = client.checkToken(userId, null, conf.string(ValidToken.REFRESH_TOKEN), null);
-                if (StringUtils.isBlank(checkedToken.string(PROPERTY_ERROR))) {
-                    conf.set(PROPERTY_TOKEN, checkedToken.string(PROPERTY_TOKEN));
-                    conf.set(PROPERTY_REFRESH_TOKEN, checkedToken.string(PROPERTY_REFRESH_TOKEN));
-                    conf.set(PROPERTY_EXPIRATION_TIME, checkedToken.string(PROPERTY_EXPIRATION_TIME));
+        return refreshUserCredentialsById(userId, null);
+    }
 
-                    return saveUserConfiguration(userId, conf, false);
-                } else {
-                    logger.info(String.format("Invalid token for user [%s]: %s", userId, checkedToken.string(PROPERTY_ERROR)));
-                }
+    /**
+     * Regenerates the token of the user
+     *
+     * @param userId user id
+     * @param rejectedToken token rejected by Google, it is not used again even if it did not expire. If
+     *                      another instance already replaced it, the new token is used without a refresh.
+     * @return user configuration with the new token, or null if the user is not connected
+     */
+    public Json refreshUserCredentialsById(final String userId, final String rejectedToken){
+        if(StringUtils.isNotBlank(userId)) {
+            final Json conf = refreshToken(userId, rejectedToken);
+            if (conf != null) {
+                tokens.put(userId, conf);
+                return conf;
             } else {
                 logger.info(String.format("User [%s] is not connected", userId));
             }
@@ -437,11 +723,54 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
         return null;
     }
 
+    /**
+     * Refreshes the token of the user, coordinated with the other instances of the endpoint so only one
+     * of them sends the refresh token to Google and saves the result
+     */
+    private Json refreshToken(final String userId, final String staleToken){
+        return tokenRefresh.refresh(userId, staleToken, conf -> client.checkToken(userId, null, conf.string(ValidToken.REFRESH_TOKEN), null));
+    }
+
+    /**
+     * Checks the credentials of the user through the circuit breaker, so users with revoked credentials
+     * fail fast instead of trying to refresh the token on each request
+     */
+    private Json checkCredentials(final String userId, final String functionId){
+        final CredentialCircuitBreaker.Permit permit = credentialBreaker.acquire(userId);
+        if(permit == CredentialCircuitBreaker.Permit.REJECTED){
+            throw EndpointException.permanent(ErrorCode.CLIENT, String.format("Credentials of user [%s] are invalid, the user must connect again", userId)).returnCode(401);
+        }
+        try {
+            final Json conf = checkUserOrDisconnect(userId, functionId);
+            if(conf != null) {
+                credentialBreaker.onSuccess(userId);
+            } else {
+                credentialBreaker.release(userId, permit);
+            }
+            return conf;
+        } catch (RuntimeException ex){
+            if(!GoogleClient.isInvalidCredentials(ex)) {
+                credentialBreaker.release(userId, permit);
+            }
+            throw ex;
+        }
+    }
+
     private GoogleDriveService getService(Json body, String userId, String userEmail, String functionId){
+        try (Tracer.Span span = Tracer.span("token")) {
+            return resolveService(body, userId, userEmail, functionId);
+        }
+    }
+
+    private GoogleDriveService resolveService(Json body, String userId, String userEmail, String functionId){
         String token = null;
         Json checkedConf = null;
         if(StringUtils.isNotBlank(userId)){
-            checkedConf = checkUserOrDisconnect(userId, functionId);
+            // registered tokens that are not about to expire are used without reading the data store
+            token = tokens.validToken(userId);
+            if(StringUtils.isBlank(token)) {
+                checkedConf = checkCredentials(userId, functionId);
+            }
         } else if(body != null && StringUtils.isNotBlank(body.string(PROPERTY_TOKEN))){
             token = body.string(PROPERTY_TOKEN);
         }
@@ -475,204 +804,1056 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
 
     @EndpointFunction(name = "getUserInformation")
     public Json getUserInformation(FunctionRequest request){
-        final String userId = request.getUserId();
-        appLogs.info(String.format("Request to GET USER INFORMATION received [%s]", userId));
-
-        boolean connected = false;
-        Json information = null;
+        try (Tracer.Trace trace = startTrace(request, "getUserInformation");
+             Deadline.Scope deadline = startDeadline(request)) {
+            final String userId = request.getUserId();
+            appLogs.info(String.format("Request to GET USER INFORMATION received [%s]", userId));
+
+            boolean connected = false;
+            Json information = null;
+
+            if(StringUtils.isNotBlank(userId) && !isConnected(userId)) {
+                // the user could have been disconnected by another instance
+                userInformation.remove(userId);
+            } else if(StringUtils.isNotBlank(userId)) {
+                try {
+                    // the profile is served from memory, and refreshed in background when it gets old
+                    information = userInformation.get(userId, this::loadUserInformation);
+                    connected = information != null;
+                } catch (IOException e) {
+                    logger.warn(String.format("Exception when execute request to get user information [%s]", e.getMessage()), e);
+                    information = ApiException.generate("Exception when execute request to get user information", e, true);
+                    connected = true;
+                }
+            }
 
-        if(StringUtils.isNotBlank(userId)) {
-            final Json configuration = checkUserById(userId);
-            final String token = configuration.string(PROPERTY_TOKEN);
+            final Json response = Json.map().set("status", connected).setIfNotEmpty("information", information);
+            logger.info(String.format("Function GET USER INFORMATION: [%s]", response.toString()));
+            return response;
+        }
+    }
 
-            if(StringUtils.isNotBlank(token)) {
-                final GoogleAuthenticationService authenticationService = client.getAuthenticationService(token);
+    /**
+     * A registered token is only used for a while, after that the user configuration is checked again,
+     * so users disconnected on other instances are seen here too
+     */
+    private boolean isConnected(String userId) {
+        if(StringUtils.isNotBlank(tokens.validToken(userId))) {
+            return true;
+        }
+        final Json configuration = getUserConfiguration(userId);
+        return configuration != null && !configuration.isEmpty();
+    }
 
-                information = authenticationService.getUserInformation();
-                connected = true;
+    private Json loadUserInformation(String userId) throws IOException {
+        // cached profiles do not take a slot, only the requests to Google
+        try (Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.METADATA)) {
+            String token = tokens.validToken(userId);
+            if(StringUtils.isBlank(token)) {
+                final Json configuration = checkUserById(userId);
+                token = configuration != null ? configuration.string(PROPERTY_TOKEN) : null;
+            }
+            if(StringUtils.isBlank(token)) {
+                return null;
             }
+            return client.getAuthenticationService(token).fetchUserInformation();
         }
-
-        final Json response = Json.map().set("status", connected).setIfNotEmpty("information", information);
-        logger.info(String.format("Function GET USER INFORMATION: [%s]", response.toString()));
-        return response;
     }
 
     @EndpointFunction(name = "_uploadFile")
     public Json uploadFile(FunctionRequest request) throws IOException {
+        try (Tracer.Trace trace = startTrace(request, "_uploadFile");
+             Deadline.Scope deadline = startDeadline(request);
+             Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.TRANSFER)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("Upload file request received", data);
+
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+
+            DownloadedFile file = downloadFromSlingr(data.string("fileId"));
+            if (boolParam(data, "deduplicate")) {
+                try (SpooledContent content = SpooledContent.spool(file.getFile())) {
+                    final Json response = uploadDeduplicated(service, userId, content, data);
+                    logger.info(String.format("Function upload file: [%s]", response.toString()));
+                    return response;
+                }
+            }
+            final String fileId = service.createFile(file.getFile(), data.string("name"), data.string("mimeType"), data.string("folderId"), data.string("originalMimeType"), data.string("driveFileId")).getId();
+            Json response = Json.map().set("fileId", fileId);
+            logger.info(String.format("Function upload file: [%s]", response.toString()));
+            return response;
+        }
+    }
+
+    /**
+     * Uploads a file only if the target folder does not contain a file with the same content.
+     * The MD5 checksum calculated while the Slingr file was downloaded is compared against
+     * the cached content hashes of the folder before sending any byte to Google.
+     *
+     * @param service drive service of the user
+     * @param userId user id
+     * @param content spooled content of the Slingr file
+     * @param data function parameters
+     * @return id of the stored file and the deduplication result
+     */
+    private Json uploadDeduplicated(GoogleDriveService service, String userId, SpooledContent content, Json data) throws IOException {
+        final String name = data.string("name");
+        final String folderId = data.string("folderId");
+        final String originalMimeType = data.string("originalMimeType");
+        final String md5 = content.getMd5();
+        final long size = content.getSize();
+        final Json response = Json.map().set("md5Checksum", md5).set("size", size);
+
+        final String cacheKey = StringUtils.isNotBlank(userId) ? userId : "-";
+        final String parentId = StringUtils.isNotBlank(folderId) ? folderId : "root";
+        final File sameContent = folderHashes.findByContent(cacheKey, parentId, md5, size, service::listContentHashes);
+        if (sameContent != null) {
+            EndpointMetrics.increment("upload.dedup.hits");
+            EndpointMetrics.add("upload.dedup.bytesSaved", size);
+            logger.info(String.format("Upload of [%s] skipped, same content as file [%s]", name, sameContent.getId()));
+            return response.set("fileId", sameContent.getId())
+                    .set("deduplicated", true)
+                    .set("bytesSaved", size);
+        }
+        EndpointMetrics.increment("upload.dedup.misses");
+
+        final File sameName = boolParam(data, "updateExisting") && StringUtils.isNotBlank(name)
+                ? folderHashes.findByName(cacheKey, parentId, name, service::listContentHashes)
+                : null;
+        final File stored;
+        try (InputStream in = content.open()) {
+            if (sameName != null) {
+                stored = service.updateFileContent(sameName.getId(), in, originalMimeType);
+                response.set("newRevision", true);
+            } else {
+                stored = service.createFile(in, name, data.string("mimeType"), folderId, originalMimeType);
+            }
+        }
+        folderHashes.record(cacheKey, parentId, stored);
+        return response.set("fileId", stored.getId())
+                .set("deduplicated", false)
+                .set("bytesSaved", 0);
+    }
+
+    @EndpointFunction(name = "_uploadFiles")
+    public Json uploadFiles(FunctionRequest request) {
+        try (Tracer.Trace trace = startTrace(request, "_uploadFiles");
+             Deadline.Scope deadline = startDeadline(request)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("Upload files request received", data);
+
+            final List<Json> items = data.jsons("items");
+            if (items == null || items.isEmpty()) {
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, "Items are required").returnCode(400);
+            }
+
+            // user and token are resolved once for the whole batch
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+
+            final Json response = runBulk(items, intParam(data, "workers", BULK_WORKERS), item -> {
+                if (StringUtils.isBlank(item.string("fileId"))) {
+                    throw EndpointException.permanent(ErrorCode.ARGUMENT, "File ID is required");
+                }
+                if (StringUtils.isBlank(item.string("originalMimeType"))) {
+                    item.set("originalMimeType", item.string("mimeType"));
+                }
+                // the size of the Slingr file is not known before the download, so the lease covers the
+                // download too with the estimate used for unknown sizes
+                try (Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.BULK);
+                     TransferBudget.Lease lease = transferBudget.acquire(BULK_UNKNOWN_SIZE)) {
+                    final DownloadedFile file = downloadFromSlingr(item.string("fileId"));
+                    if (boolParam(item, "deduplicate")) {
+                        try (SpooledContent content = SpooledContent.spool(file.getFile())) {
+                            return uploadDeduplicated(service, userId, content, item);
+                        }
+                    }
+                    // streamed straight to Drive, only deduplicated uploads need the content twice
+                    final File stored = service.createFile(file.getFile(), item.string("name"), item.string("mimeType"), item.string("folderId"), item.string("originalMimeType"), item.string("driveFileId"));
+                    return Json.map().set("fileId", stored.getId()).setIfNotNull("size", stored.getSize());
+                }
+            });
+            logger.info(String.format("Function upload files: [%s]", response.toString()));
+            return response;
+        }
+    }
+
+    @EndpointFunction(name = "_downloadFiles")
+    public Json downloadFiles(FunctionRequest request) {
+        try (Tracer.Trace trace = startTrace(request, "_downloadFiles");
+             Deadline.Scope deadline = startDeadline(request)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("Download files request received", data);
+
+            final List<Json> items = data.jsons("items");
+            if (items == null || items.isEmpty()) {
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, "Items are required").returnCode(400);
+            }
+
+            // user and token are resolved once for the whole batch
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+
+            final Json response = runBulk(items, intParam(data, "workers", BULK_WORKERS), item -> downloadItem(service, item));
+            logger.info(String.format("Function download files: [%s]", response.toString()));
+            return response;
+        }
+    }
+
+    private Json downloadItem(GoogleDriveService service, Json item) throws IOException {
+        if (StringUtils.isBlank(item.string("fileId"))) {
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, "File ID is required");
+        }
+        final File file = service.fileMetadata(item.string("fileId"), GoogleDriveService.ARTIFACT_FIELDS);
+        try (Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.BULK);
+             TransferBudget.Lease lease = transferBudget.acquire(file.getSize() != null ? file.getSize() : BULK_UNKNOWN_SIZE)) {
+            return downloadToSlingr(service, file);
+        }
+    }
+
+    @EndpointFunction(name = "_mirrorFolder")
+    public Json mirrorFolder(FunctionRequest request) throws IOException {
+        try (Tracer.Trace trace = startTrace(request, "_mirrorFolder");
+             Deadline.Scope deadline = startDeadline(request)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("Mirror folder request received", data);
+
+            final String folderId = data.string("folderId");
+            if (StringUtils.isBlank(folderId)) {
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, "Folder ID is required").returnCode(400);
+            }
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+            final Json response = folderMirror(service, data).mirror(MIRROR_MANIFEST_PREFIX + userId + "-" + folderId, folderId, boolParam(data, "full"));
+            logger.info(String.format("Function mirror folder: [%s]", response.toString()));
+            return response;
+        }
+    }
+
+    private FolderMirror folderMirror(GoogleDriveService service, Json data) {
+        final String exportMimeType = data.string("exportMimeType");
+        final int workers = Math.max(1, Math.min(intParam(data, "workers", BULK_WORKERS), bulkWorkersLimit()));
+        // each download takes its own bulk permit, as in the other bulk functions
+        return new FolderMirror(service, mirrorManifests, file -> {
+            try (Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.BULK);
+                 TransferBudget.Lease lease = transferBudget.acquire(file.getSize() != null ? file.getSize() : BULK_UNKNOWN_SIZE)) {
+                if (file.getMimeType().startsWith(FolderArchiver.GOOGLE_APPS_PREFIX)) {
+                    return exportToSlingr(service, file.getId(), exportMimeType, null);
+                }
+                return downloadToSlingr(service, file);
+            }
+        }, StringUtils.isNotBlank(exportMimeType), workers);
+    }
+
+    @EndpointFunction(name = "_submitJob")
+    public Json submitJob(FunctionRequest request) {
         final Json data = request.getJsonParams();
         final String userId = request.getUserId();
-        final String functionId = request.getFunctionId();
-        appLogs.info("Upload file request received", data);
+        appLogs.info("Submit job request received", data);
+        if (StringUtils.isBlank(userId)) {
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, "User ID is required").returnCode(400);
+        }
+        if (StringUtils.isBlank(data.string("type"))) {
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, "Job type is required").returnCode(400);
+        }
+        // credentials are checked now, so an invalid user is reported to the caller instead of failing the job
+        getService(data, userId, request.getUserEmail(), request.getFunctionId());
+        final Json response = jobs.submit(userId, data.string("type"), data.json("params"));
+        logger.info(String.format("Function submit job: [%s]", response.toString()));
+        return response;
+    }
 
-        final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+    @EndpointFunction(name = "_getJob")
+    public Json getJob(FunctionRequest request) {
+        final Json data = request.getJsonParams();
+        final Json job = jobs.get(data.string("jobId"), request.getUserId());
+        if (job == null) {
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, String.format("Job [%s] not found", data.string("jobId"))).returnCode(404);
+        }
+        return job;
+    }
 
-        DownloadedFile file = files().download(data.string("fileId"));
-        final String fileId = service.uploadFile(file.getFile(), data.string("name"), data.string("mimeType"), data.string("folderId"), data.string("originalMimeType"));
-        Json response = Json.map().set("fileId", fileId);
-        logger.info(String.format("Function upload file: [%s]", response.toString()));
-        return response;
+    @EndpointFunction(name = "_cancelJob")
+    public Json cancelJob(FunctionRequest request) {
+        final Json data = request.getJsonParams();
+        appLogs.info("Cancel job request received", data);
+        final Json job = jobs.cancel(data.string("jobId"), request.getUserId());
+        if (job == null) {
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, String.format("Job [%s] not found", data.string("jobId"))).returnCode(404);
+        }
+        return job;
+    }
+
+    /**
+     * Long operations that can run as jobs. Each slice does as much work as the deadline allows and
+     * leaves a checkpoint, so the job can continue in another slice or in another instance.
+     */
+    private void registerJobTasks(JobManager jobs) {
+        jobs.register("crawlInventory", job -> {
+            final Json params = job.getParams();
+            final String rootId = StringUtils.isNotBlank(params.string("folderId")) ? params.string("folderId") : "root";
+            final int concurrency = Math.max(1, Math.min(intParam(params, "concurrency", INVENTORY_WORKERS), INVENTORY_MAX_WORKERS));
+            final GoogleDriveService service = getService(params, job.getUserId(), null, null);
+
+            final InventoryCrawler.Result result = new InventoryCrawler(service, inventoryCheckpoints, bulkheads.get(Bulkheads.OperationClass.METADATA), concurrency)
+                    .crawl(INVENTORY_CHECKPOINT_PREFIX + job.getUserId() + "-job-" + job.getId(), rootId);
+            final Json summary = result.getInventory().summary();
+            if (!result.isComplete()) {
+                job.progress(summary.set("pendingFolders", result.getPendingFolders()));
+                return null;
+            }
+            final String fileName = StringUtils.isNotBlank(params.string("name")) ? params.string("name") : "inventory-" + job.getId() + ".json";
+            return uploadInventoryReport(result.getInventory(), fileName).set("summary", summary);
+        });
+
+        jobs.register("mirrorFolder", job -> {
+            final Json params = job.getParams();
+            final String folderId = params.string("folderId");
+            if (StringUtils.isBlank(folderId)) {
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, "Folder ID is required");
+            }
+            final GoogleDriveService service = getService(params, job.getUserId(), null, null);
+            final Json report = folderMirror(service, params).mirror(MIRROR_MANIFEST_PREFIX + job.getUserId() + "-" + folderId, folderId, boolParam(params, "full"));
+
+            // files copied by previous slices are only in the counters of the checkpoint
+            final Json totals = job.getCheckpoint() != null ? job.getCheckpoint() : Json.map();
+            for (String list : Arrays.asList("added", "updated", "deleted")) {
+                totals.set(list, intParam(totals, list, 0) + report.jsons(list).size());
+            }
+            final boolean failed = report.jsons("failed") != null && !report.jsons("failed").isEmpty();
+            if (!Boolean.TRUE.equals(report.bool("complete")) && !failed) {
+                job.checkpoint(totals, totals);
+                return null;
+            }
+            return report.set("totals", totals);
+        });
+
+        jobs.register("downloadFiles", job -> {
+            final Json params = job.getParams();
+            final List<Json> items = params.jsons("items");
+            if (items == null || items.isEmpty()) {
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, "Items are required");
+            }
+            final GoogleDriveService service = getService(params, job.getUserId(), null, null);
+            final List<Json> results = new ArrayList<>();
+            if (job.getCheckpoint() != null && job.getCheckpoint().jsons("results") != null) {
+                results.addAll(job.getCheckpoint().jsons("results"));
+            }
+            while (results.size() < items.size()) {
+                if (job.isCancelled()) {
+                    throw EndpointException.permanent(ErrorCode.GENERAL, "Job cancelled");
+                }
+                final Deadline deadline = Deadline.current();
+                if (deadline != null && deadline.remainingMillis() < JOB_SLICE_MARGIN) {
+                    return null;
+                }
+                final int offset = results.size();
+                final List<Json> batch = items.subList(offset, Math.min(items.size(), offset + JOB_BATCH_SIZE));
+                final Json response = runBulk(batch, intParam(params, "workers", BULK_WORKERS), item -> downloadItem(service, item));
+                for (Json result : response.jsons("results")) {
+                    results.add(result.set("index", offset + result.integer("index")));
+                }
+                job.checkpoint(Json.map().set("results", results), Json.map().set("done", results.size()).set("total", items.size()));
+            }
+            int succeeded = 0;
+            for (Json result : results) {
+                if (Boolean.TRUE.equals(result.bool("success"))) {
+                    succeeded++;
+                }
+            }
+            return Json.map()
+                    .set("results", results)
+                    .set("succeeded", succeeded)
+                    .set("failed", results.size() - succeeded);
+        });
+    }
+
+    private interface BulkTask {
+        Json run(Json item) throws Exception;
+    }
+
+    /**
+     * Runs a task for each item with a bounded number of workers. A failure in one item is
+     * reported in its result and does not stop the rest of the batch. Workers are limited to the
+     * concurrency of the bulk class, so the items of a batch do not queue behind each other.
+     *
+     * @param items items to process
+     * @param workers number of parallel workers
+     * @param task task to run for each item
+     * @return results in the same order as the items, with the number of succeeded and failed items
+     */
+    private Json runBulk(List<Json> items, int workers, BulkTask task) {
+        final int poolSize = Math.max(1, Math.min(Math.min(workers, bulkWorkersLimit()), items.size()));
+        final ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        try {
+            final List<Future<Json>> futures = new ArrayList<>();
+            for (Json item : items) {
+                futures.add(executor.submit(Deadline.propagate(() -> task.run(item))));
+            }
+            final List<Json> results = new ArrayList<>();
+            int succeeded = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                Json result;
+                try {
+                    result = futures.get(i).get().set("success", true);
+                    succeeded++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw EndpointException.retryable(ErrorCode.GENERAL, "Interrupted while transferring files");
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    Deadline.recordIfTimeout(cause);
+                    logger.info(String.format("Bulk item [%s] failed [%s]", i, cause.getMessage()));
+                    result = Json.map().set("success", false).set("error", cause.getMessage());
+                }
+                results.add(result.set("index", i));
+            }
+            return Json.map()
+                    .set("results", results)
+                    .set("succeeded", succeeded)
+                    .set("failed", results.size() - succeeded);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int bulkWorkersLimit() {
+        return Math.min(BULK_MAX_WORKERS, bulkheads.get(Bulkheads.OperationClass.BULK).getMaxConcurrent());
+    }
+
+    @EndpointFunction(name = "_getMetrics")
+    public Json getMetrics(FunctionRequest request) {
+        return EndpointMetrics.snapshot();
+    }
+
+    @EndpointFunction(name = "_getFieldMaskReport")
+    public Json getFieldMaskReport(FunctionRequest request) {
+        return fieldMaskPolicy != null ? fieldMaskPolicy.report() : Json.map();
+    }
+
+    public FieldMaskPolicy getFieldMaskPolicy() {
+        return fieldMaskPolicy;
+    }
+
+    public RequestCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    public RequestHedger getHedger() {
+        return hedger;
+    }
+
+    public FileIdPool getFileIdPool() {
+        return fileIds;
+    }
+
+    @EndpointFunction(name = "_generateFileIds")
+    public Json generateFileIds(FunctionRequest request) throws IOException {
+        try (Tracer.Trace trace = startTrace(request, "_generateFileIds");
+             Deadline.Scope deadline = startDeadline(request);
+             Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.METADATA)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+
+            final int count = intParam(data, "count", 1);
+            if (count < 1 || count > FileIdPool.MAX_BATCH_SIZE) {
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, String.format("Count must be between 1 and %s", FileIdPool.MAX_BATCH_SIZE)).returnCode(400);
+            }
+
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+            return Json.map().set("ids", service.takeIds(count));
+        }
+    }
+
+    @EndpointFunction(name = "_getStatus")
+    public Json getStatus(FunctionRequest request) {
+        return startup.toJson()
+                .set("bulkheads", bulkheads.toJson())
+                .setIfNotNull("jobs", jobs != null ? jobs.toJson() : null)
+                .setIfNotNull("queryCache", queryCache != null ? queryCache.toJson() : null)
+                .setIfNotNull("hedging", hedger != null ? hedger.toJson() : null);
     }
 
     @EndpointFunction(name = "_downloadFile")
     public Json downloadFile(FunctionRequest request) throws IOException {
-        final Json data = request.getJsonParams();
-        final String userId = request.getUserId();
-        final String functionId = request.getFunctionId();
-        appLogs.info("Download file request received", data);
+        try (Tracer.Trace trace = startTrace(request, "_downloadFile");
+             Deadline.Scope deadline = startDeadline(request);
+             Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.TRANSFER)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("Download file request received", data);
+
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+
+            final String fileId = data.string("fileId");
+            final Json response;
+            if (isInline(data)) {
+                final File file = service.fileMetadata(fileId, GoogleDriveService.ARTIFACT_FIELDS);
+                if (file.getSize() != null && file.getSize() <= inlineLimit) {
+                    response = inlineOrUpload(service, file, "media", file.getName().replaceAll("/", "-"), file.getMimeType(),
+                            out -> service.downloadFile(file.getId(), out));
+                } else {
+                    response = downloadToSlingr(service, file);
+                }
+            } else if (StringUtils.isNotBlank(userId)) {
+                // identical downloads in flight share the same transfer and the same Slingr file
+                response = coalescer.execute(RequestCoalescer.key("download", userId, fileId, null),
+                        () -> downloadToSlingr(service, service.fileMetadata(fileId, GoogleDriveService.ARTIFACT_FIELDS)),
+                        RequestCoalescer::copy);
+            } else {
+                response = downloadToSlingr(service, service.fileMetadata(fileId, GoogleDriveService.ARTIFACT_FIELDS));
+            }
+            logger.info(String.format("Function download file: [%s]", response.toString()));
+            return response;
+        }
+    }
 
-        final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+    private Json uploadToSlingr(String fileName, InputStream in, String mimeType) {
+        try (Tracer.Span span = Tracer.span("slingr.upload")) {
+            return files().upload(fileName, in, mimeType);
+        }
+    }
+
+    private DownloadedFile downloadFromSlingr(String fileId) {
+        try (Tracer.Span span = Tracer.span("slingr.download")) {
+            return files().download(fileId);
+        }
+    }
 
-        java.io.File tempFile = java.io.File.createTempFile("googlefile-", "");
-        FileOutputStream out = new FileOutputStream(tempFile);
-        File file = service.fileMetadata(data.string("fileId"));
-        service.downloadFile(data.string("fileId"), out);
-        out.close();
-        FileInputStream in = new FileInputStream(tempFile);
+    private Json downloadToSlingr(GoogleDriveService service, File file) throws IOException {
         String fileName = file.getName().replaceAll("/", "-");
-        Json response = files().upload(fileName, in, file.getMimeType());
-        in.close();
-        tempFile.delete();
-        logger.info(String.format("Function download file: [%s]", response.toString()));
-        return response;
+        try (InputStream in = openArtifact(service, file, "media", out -> service.downloadFile(file.getId(), out))) {
+            return uploadToSlingr(fileName, in, file.getMimeType());
+        }
     }
 
     @EndpointFunction(name = "_downloadExportLink")
     public Json downloadExportLink(FunctionRequest request) throws IOException {
-        final Json data = request.getJsonParams();
-        final String userId = request.getUserId();
-        final String functionId = request.getFunctionId();
-        appLogs.info("Download export link request received", data);
+        try (Tracer.Trace trace = startTrace(request, "_downloadExportLink");
+             Deadline.Scope deadline = startDeadline(request);
+             Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.TRANSFER)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("Download export link request received", data);
+
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+
+            final String exportMimeType = StringUtils.isNotBlank(data.string("exportMimeType")) ? data.string("exportMimeType") : PDF_MIME_TYPE;
+            final Json response = isInline(data)
+                    ? exportInline(service, data.string("fileId"), exportMimeType, data.string("mimeType"))
+                    : exportToSlingr(service, data.string("fileId"), exportMimeType, data.string("mimeType"));
+            logger.info(String.format("Function download file: [%s]", response.toString()));
+            return response;
+        }
+    }
 
-        final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+    @EndpointFunction(name = "_exportFile")
+    public Json exportFile(FunctionRequest request) throws IOException {
+        try (Tracer.Trace trace = startTrace(request, "_exportFile");
+             Deadline.Scope deadline = startDeadline(request);
+             Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.TRANSFER)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("Export file request received", data);
+
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+
+            final String fileId = data.string("fileId");
+            final String url = buildUrl(data.string("path"));
+            final Json params = data.json("params");
+            final String exportMimeType = params != null ? params.string("mimeType") : null;
+            final Json response;
+            if (StringUtils.isNotBlank(exportMimeType) && url.equals(buildUrl("/files/" + fileId + "/export"))) {
+                response = isInline(data)
+                        ? exportInline(service, fileId, exportMimeType, data.string("mimeType"))
+                        : exportToSlingr(service, fileId, exportMimeType, data.string("mimeType"));
+            } else {
+                // custom export path, the request is sent as it is
+                File file = service.fileMetadata(fileId, GoogleDriveService.ARTIFACT_FIELDS);
+                String fileName = MimeExtensions.withExtension(file.getName().replaceAll("/", "-"), exportMimeType);
+                // every parameter can change the content, so all of them are part of the key
+                final String variant = "export|" + url + "|" + (params != null ? new TreeMap<>(params.toMap()) : "");
+                try (InputStream in = openArtifact(service, file, variant, out -> service.getRequestAndDownload(url, params, out, functionId))) {
+                    response = uploadToSlingr(fileName, in, data.string("mimeType"));
+                }
+            }
+            logger.info(String.format("Function download file: [%s]", response.toString()));
+            return response;
+        }
+    }
 
-        java.io.File tempFile = java.io.File.createTempFile("googlefile-", "");
-        FileOutputStream out = new FileOutputStream(tempFile);
-        File file = service.fileMetadata(data.string("fileId"));
+    @EndpointFunction(name = "_exportFormats")
+    public Json exportFormats(FunctionRequest request) throws IOException {
+        try (Tracer.Trace trace = startTrace(request, "_exportFormats");
+             Deadline.Scope deadline = startDeadline(request)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("Export formats request received", data);
+
+            final String fileId = data.string("fileId");
+            if (StringUtils.isBlank(fileId)) {
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, "File ID is required").returnCode(400);
+            }
+            final List<String> formats = data.strings("formats");
+            if (formats == null || formats.isEmpty()) {
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, "Formats are required").returnCode(400);
+            }
+            final List<Json> items = new ArrayList<>();
+            for (String format : new LinkedHashSet<>(formats)) {
+                items.add(Json.map().set("mimeType", format));
+            }
 
-        Json params = Json.map();
-        params.set("supportsAllDrives", true);
-        params.set("fields", "*");
-        Json fileData = service.getRequest(API_URL + "/files/"+ data.string("fileId"), params, functionId);
-        List<String> resLinks = Arrays.asList(fileData.toMap().get("exportLinks").toString().split(","));
-        String pdfDownloadUrl = resLinks.get(1).replace("application/pdf=", "");
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+            // metadata and export links are fetched once for all the formats
+            final File file;
+            try (Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.METADATA)) {
+                file = service.fileMetadata(fileId, GoogleDriveService.EXPORT_FIELDS);
+            }
+            if (file.getMimeType() == null || !file.getMimeType().startsWith(FolderArchiver.GOOGLE_APPS_PREFIX)) {
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, String.format("File [%s] is not a Google Docs file", fileId)).returnCode(400);
+            }
 
-        service.downloadExportLink(pdfDownloadUrl, out);
-        out.close();
-        FileInputStream in = new FileInputStream(tempFile);
-        String fileName = file.getName().replaceAll("/", "-");
-        Json response = files().upload(fileName+".pdf", in, data.string("mimeType"));
-        in.close();
-        tempFile.delete();
-        logger.info(String.format("Function download file: [%s]", response.toString()));
-        return response;
+            final int workers = Math.max(1, Math.min(intParam(data, "concurrency", EXPORT_WORKERS), EXPORT_MAX_WORKERS));
+            final Json results = runBulk(items, workers, item -> {
+                try (Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.BULK);
+                     TransferBudget.Lease lease = transferBudget.acquire(BULK_UNKNOWN_SIZE)) {
+                    return Json.map().set("file", pipeExportToSlingr(service, file, item.string("mimeType")));
+                }
+            });
+
+            final Json exported = Json.map();
+            final Json errors = Json.map();
+            for (Json result : results.jsons("results")) {
+                final String format = items.get(result.integer("index")).string("mimeType");
+                if (Boolean.TRUE.equals(result.bool("success"))) {
+                    exported.set(format, result.json("file"));
+                } else {
+                    errors.set(format, result.string("error"));
+                }
+            }
+            final Json response = Json.map()
+                    .set("fileId", file.getId())
+                    .set("name", file.getName())
+                    .set("files", exported)
+                    .set("errors", errors)
+                    .set("complete", errors.isEmpty());
+            logger.info(String.format("Function export formats: [%s]", response.toString()));
+            return response;
+        }
     }
 
-    @EndpointFunction(name = "_exportFile")
-    public Json exportFile(FunctionRequest request) throws IOException {
-        final Json data = request.getJsonParams();
-        final String userId = request.getUserId();
-        final String functionId = request.getFunctionId();
-        appLogs.info("Export file request received", data);
+    /**
+     * Exports a Google Docs file straight into a Slingr file. The export is piped to the upload, so no
+     * temporary file is written, unless the artifact cache is enabled, which keeps the exports of the
+     * same version for the next calls.
+     */
+    private Json pipeExportToSlingr(GoogleDriveService service, File file, String exportMimeType) throws IOException {
+        if (artifactCache != null) {
+            return exportToSlingr(service, file, exportMimeType, null);
+        }
+        final String fileName = MimeExtensions.withExtension(file.getName().replaceAll("/", "-"), exportMimeType);
+        return pipeToSlingr(fileName, exportMimeType, out -> service.export(file, exportMimeType, out));
+    }
 
-        final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+    /**
+     * Writes the content of a Slingr file while it is uploaded, through a pipe, so the content is never
+     * fully held in memory or disk. If the writer fails the upload is cancelled.
+     */
+    private Json pipeToSlingr(String fileName, String mimeType, PipeWriter writer) throws IOException {
+        final PipedInputStream in = new PipedInputStream(PIPE_BUFFER_SIZE);
+        final PipedOutputStream out = new PipedOutputStream(in);
+        final Future<Json> upload = transferExecutor.submit(Deadline.propagate(() -> {
+            try {
+                return uploadToSlingr(fileName, in, mimeType);
+            } finally {
+                in.close();
+            }
+        }));
+        try {
+            writer.write(out);
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            Deadline.recordIfTimeout(e);
+            upload.cancel(true);
+            in.close();
+            throw e;
+        }
 
-        java.io.File tempFile = java.io.File.createTempFile("googlefile-", "");
-        FileOutputStream out = new FileOutputStream(tempFile);
-        File file = service.fileMetadata(data.string("fileId"));
-        service.getRequestAndDownload(buildUrl(data.string("path")), data.json("params"), out, functionId);
-        out.close();
-        FileInputStream in = new FileInputStream(tempFile);
-        String fileName = file.getName().replaceAll("/", "-");
         try {
-            MimeType mimeType = MimeTypes.getDefaultMimeTypes().forName(data.json("params").string("mimeType"));
-            if (!fileName.toLowerCase().endsWith(mimeType.getExtension())) {
-                fileName = fileName+mimeType.getExtension();
+            return upload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw EndpointException.retryable(ErrorCode.GENERAL, String.format("Interrupted while uploading [%s]", fileName));
+        } catch (ExecutionException e) {
+            throw ApiException.generate(String.format("Error uploading [%s]", fileName), e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
+    }
+
+    private interface PipeWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Exports a Google Docs file and uploads the result as a Slingr file. Metadata is fetched once,
+     * including the export links, and the export engine picks the transport.
+     */
+    private Json exportToSlingr(GoogleDriveService service, String fileId, String exportMimeType, String uploadMimeType) throws IOException {
+        return exportToSlingr(service, service.fileMetadata(fileId, GoogleDriveService.EXPORT_FIELDS), exportMimeType, uploadMimeType);
+    }
+
+    private Json exportToSlingr(GoogleDriveService service, File file, String exportMimeType, String uploadMimeType) throws IOException {
+        final String fileName = MimeExtensions.withExtension(file.getName().replaceAll("/", "-"), exportMimeType);
+        try (InputStream in = openArtifact(service, file, "export|" + exportMimeType, out -> service.export(file, exportMimeType, out))) {
+            return uploadToSlingr(fileName, in, StringUtils.isNotBlank(uploadMimeType) ? uploadMimeType : exportMimeType);
+        }
+    }
+
+    private boolean isInline(Json data) {
+        return inlineLimit > 0 && boolParam(data, "inline");
+    }
+
+    private Json exportInline(GoogleDriveService service, String fileId, String exportMimeType, String uploadMimeType) throws IOException {
+        final File file = service.fileMetadata(fileId, GoogleDriveService.EXPORT_FIELDS);
+        final String fileName = MimeExtensions.withExtension(file.getName().replaceAll("/", "-"), exportMimeType);
+        return inlineOrUpload(service, file, "export|" + exportMimeType, fileName, StringUtils.isNotBlank(uploadMimeType) ? uploadMimeType : exportMimeType,
+                out -> service.export(file, exportMimeType, out));
+    }
+
+    /**
+     * Returns the content in the response when it is not bigger than the inline limit, or uploads it
+     * as a Slingr file otherwise. The size of exports is not known in advance, so the content is kept
+     * in memory until it goes over the limit and spilled to a temporary file from there.
+     *
+     * @return the content, as text or base64 depending on the mime type, or the Slingr file
+     */
+    private Json inlineOrUpload(GoogleDriveService service, File file, String variant, String fileName, String mimeType, ArtifactCache.Filler filler) throws IOException {
+        try (InlineBuffer buffer = new InlineBuffer(inlineLimit)) {
+            if (artifactCache != null) {
+                try (InputStream in = openArtifact(service, file, variant, filler)) {
+                    StreamUtils.copy(in, buffer.getOutputStream());
+                }
+            } else {
+                try {
+                    filler.fill(buffer.getOutputStream());
+                } catch (IOException e) {
+                    Deadline.recordIfTimeout(e);
+                    throw e;
+                }
+            }
+            if (!buffer.isInline()) {
+                EndpointMetrics.increment("inline.spilled");
+                try (InputStream in = buffer.open()) {
+                    return uploadToSlingr(fileName, in, mimeType);
+                }
+            }
+            EndpointMetrics.increment("inline.responses");
+            EndpointMetrics.add("inline.bytes", buffer.getSize());
+            final byte[] content = buffer.toByteArray();
+            final String text = MimeExtensions.isText(mimeType) ? decodeText(content, mimeType) : null;
+            return Json.map()
+                    .set("inline", true)
+                    .set("name", fileName)
+                    .set("contentType", mimeType)
+                    .set("size", buffer.getSize())
+                    .set("encoding", text != null ? "text" : "base64")
+                    .set("content", text != null ? text : Base64.getEncoder().encodeToString(content));
+        }
+    }
+
+    /**
+     * Decodes text content with the charset of its mime type (UTF-8 by default)
+     *
+     * @return the text, or null if the content is not valid in that charset and must be sent as base64
+     */
+    private static String decodeText(byte[] content, String mimeType) {
+        final Charset charset = MimeExtensions.charset(mimeType);
+        if (charset == null) {
+            return null;
+        }
+        try {
+            return charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(content))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            EndpointMetrics.increment("inline.binaryText");
+            return null;
+        }
+    }
+
+    /**
+     * Opens the content of a file, from the artifact cache when it is enabled and the version of
+     * the file is known, or from a temporary file otherwise. Cached content is kept per user, as a
+     * user that can read the metadata of a file is not always allowed to download it.
+     *
+     * @param service drive service of the user that downloads the file
+     * @param file metadata of the file, with the fields in {@link GoogleDriveService#ARTIFACT_FIELDS}
+     * @param variant identifies how the content is fetched (media, export format, etc.)
+     * @param filler writes the content when it is not cached
+     * @return stream over the content, that must be closed
+     */
+    private InputStream openArtifact(GoogleDriveService service, File file, String variant, ArtifactCache.Filler contentFiller) throws IOException {
+        final ArtifactCache.Filler filler = out -> {
+            try {
+                contentFiller.fill(out);
+            } catch (IOException e) {
+                Deadline.recordIfTimeout(e);
+                throw e;
+            }
+        };
+        if (artifactCache != null && StringUtils.isNotBlank(service.getUserId()) && (file.getVersion() != null || file.getModifiedTime() != null)) {
+            final String key = service.getUserId() + "|" + file.getId() + "|" + file.getVersion() + "|" +
+                    (file.getModifiedTime() != null ? file.getModifiedTime().toStringRfc3339() : null) + "|" + variant;
+            return artifactCache.open(key, filler);
+        }
+        final java.io.File tempFile = java.io.File.createTempFile("googlefile-", "");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                filler.fill(out);
             }
-        } catch (Exception e) {
-            logger.info("It was not possible to determine extension for mime type");
+            return new FileInputStream(tempFile) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        tempFile.delete();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            tempFile.delete();
+            throw e;
         }
-        Json response = files().upload(fileName, in, data.string("mimeType"));
-        in.close();
-        tempFile.delete();
-        logger.info(String.format("Function download file: [%s]", response.toString()));
-        return response;
     }
 
-    @EndpointFunction(name = "_getRequest")
-    public Json getRequest(FunctionRequest request){
-        final Json data = request.getJsonParams();
-        final String userId = request.getUserId();
-        final String functionId = request.getFunctionId();
-        appLogs.info("GET request received", data);
+    @EndpointFunction(name = "_downloadFolderAsZip")
+    public Json downloadFolderAsZip(FunctionRequest request) throws IOException {
+        try (Tracer.Trace trace = startTrace(request, "_downloadFolderAsZip");
+             Deadline.Scope deadline = startDeadline(request);
+             Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.TRANSFER)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("Download folder as zip request received", data);
+
+            final String folderId = data.string("folderId");
+            if (StringUtils.isBlank(folderId)) {
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, "Folder ID is required").returnCode(400);
+            }
 
-        final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
 
-        final Json response = service.getRequest(buildUrl(data.string("path")), data.json("params"), functionId);
-        logger.info(String.format("Function GET: [%s]", response.toString()));
-        return response;
+            String fileName = data.string("name");
+            if (StringUtils.isBlank(fileName)) {
+                final File folder = service.fileMetadata(folderId);
+                fileName = folder.getName().replaceAll("/", "-");
+            }
+            if (!fileName.toLowerCase().endsWith(".zip")) {
+                fileName = fileName + ".zip";
+            }
+            // limits can be lowered by the caller, but not raised over the defaults
+            final FolderArchiver archiver = new FolderArchiver(service, data.string("exportMimeType"),
+                    Math.max(1, Math.min(intParam(data, "maxEntries", ZIP_MAX_ENTRIES), ZIP_MAX_ENTRIES)),
+                    Math.max(0, Math.min(longParam(data, "maxTotalSize", ZIP_MAX_TOTAL_SIZE), ZIP_MAX_TOTAL_SIZE)),
+                    Math.max(0, Math.min(longParam(data, "maxFileSize", ZIP_MAX_FILE_SIZE), ZIP_MAX_FILE_SIZE)),
+                    Math.max(1, Math.min(intParam(data, "prefetch", ZIP_PREFETCH), ZIP_MAX_PREFETCH)));
+
+            // the archive is piped to the upload, so it is never fully held in memory or disk
+            final Json summary = Json.map();
+            final Json response = pipeToSlingr(fileName, "application/zip", out -> summary.merge(archiver.archive(folderId, out)));
+            response.merge(summary);
+            logger.info(String.format("Function download folder as zip: [%s]", response.toString()));
+            return response;
+        }
+    }
+
+    @EndpointFunction(name = "_crawlInventory")
+    public Json crawlInventory(FunctionRequest request) throws IOException {
+        try (Tracer.Trace trace = startTrace(request, "_crawlInventory");
+             Deadline.Scope deadline = startDeadline(request)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("Crawl inventory request received", data);
+
+            // a shared drive id is also the id of its root folder
+            final String rootId = StringUtils.isNotBlank(data.string("folderId")) ? data.string("folderId") : "root";
+            final String jobId = StringUtils.isNotBlank(data.string("jobId")) ? data.string("jobId") : rootId;
+            final int concurrency = Math.max(1, Math.min(intParam(data, "concurrency", INVENTORY_WORKERS), INVENTORY_MAX_WORKERS));
+            final String checkpointId = INVENTORY_CHECKPOINT_PREFIX + userId + "-" + jobId;
+
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+            if (boolParam(data, "restart")) {
+                inventoryCheckpoints.remove(checkpointId);
+            }
+
+            final InventoryCrawler.Result result = new InventoryCrawler(service, inventoryCheckpoints, bulkheads.get(Bulkheads.OperationClass.METADATA), concurrency).crawl(checkpointId, rootId);
+            final Json summary = result.getInventory().summary();
+            if (!result.isComplete()) {
+                // the caller calls the function again with the same job to resume the crawl
+                final Json response = Json.map()
+                        .set("status", "incomplete")
+                        .set("jobId", jobId)
+                        .set("pendingFolders", result.getPendingFolders())
+                        .set("summary", summary);
+                logger.info(String.format("Function crawl inventory: [%s]", response.toString()));
+                return response;
+            }
+
+            final String fileName = StringUtils.isNotBlank(data.string("name")) ? data.string("name") : "inventory-" + jobId + ".json";
+            final Json response = uploadInventoryReport(result.getInventory(), fileName);
+            response.set("status", "complete");
+            response.set("jobId", jobId);
+            response.set("summary", summary);
+            logger.info(String.format("Function crawl inventory: [%s]", response.toString()));
+            return response;
+        }
+    }
+
+    /**
+     * Streams the report of the inventory to a Slingr file
+     */
+    private Json uploadInventoryReport(InventoryCrawler.Inventory inventory, String fileName) throws IOException {
+        return pipeToSlingr(fileName, "application/json", out -> {
+            final Writer writer = new OutputStreamWriter(out, "UTF-8");
+            inventory.writeReport(writer);
+            writer.close();
+        });
+    }
+
+    @EndpointFunction(name = "_searchAllDrives")
+    public Json searchAllDrives(FunctionRequest request) throws IOException {
+        try (Tracer.Trace trace = startTrace(request, "_searchAllDrives");
+             Deadline.Scope deadline = startDeadline(request)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("Search all drives request received", data);
+
+            final int pageSize = Math.max(1, Math.min(intParam(data, "pageSize", SEARCH_PAGE_SIZE), SEARCH_MAX_PAGE_SIZE));
+            final int concurrency = Math.max(1, Math.min(intParam(data, "concurrency", SEARCH_WORKERS), SEARCH_MAX_WORKERS));
+            // My Drive is searched unless it is explicitly excluded
+            final boolean includeMyDrive = !data.contains("includeMyDrive") || !Boolean.FALSE.equals(data.bool("includeMyDrive"));
+
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+            final Json response = new CrossDriveSearch(service, bulkheads.get(Bulkheads.OperationClass.METADATA), concurrency).search(data.string("q"), data.string("orderBy"),
+                    data.string("fields"), pageSize, includeMyDrive, data.string("pageToken"));
+            logger.info(String.format("Function search all drives: [%s] files from [%s] drives",
+                    response.jsons("files").size(), response.integer("drives")));
+            return response;
+        }
+    }
+
+    @EndpointFunction(name = "_getRequest")
+    public Json getRequest(FunctionRequest request){
+        try (Tracer.Trace trace = startTrace(request, "_getRequest");
+             Deadline.Scope deadline = startDeadline(request);
+             Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.METADATA)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("GET request received", data);
+
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+
+            final Json response = service.getRequest(buildUrl(data.string("path")), data.json("params"), functionId);
+            logger.info(String.format("Function GET: [%s]", response.toString()));
+            return response;
+        }
     }
 
     @EndpointFunction(name = "_postRequest")
     public Json postRequest(FunctionRequest request){
-        final Json data = request.getJsonParams();
-        final String userId = request.getUserId();
-        final String functionId = request.getFunctionId();
-        appLogs.info("POST request received", data);
+        try (Tracer.Trace trace = startTrace(request, "_postRequest");
+             Deadline.Scope deadline = startDeadline(request);
+             Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.MUTATION)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("POST request received", data);
 
-        final Json content = getContent(data);
+            final Json content = getContent(data);
 
-        final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
 
-        final Json response = service.postRequest(buildUrl(data.string("path")), data.json("params"), content, functionId);
-        logger.info(String.format("Function POST: [%s]", response.toString()));
-        return response;
+            final Json response = service.postRequest(buildUrl(data.string("path")), data.json("params"), content, functionId);
+            logger.info(String.format("Function POST: [%s]", response.toString()));
+            return response;
+        }
     }
 
     @EndpointFunction(name = "_putRequest")
     public Json putRequest(FunctionRequest request){
-        final Json data = request.getJsonParams();
-        final String userId = request.getUserId();
-        final String functionId = request.getFunctionId();
-        appLogs.info("PUT request received", data);
+        try (Tracer.Trace trace = startTrace(request, "_putRequest");
+             Deadline.Scope deadline = startDeadline(request);
+             Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.MUTATION)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("PUT request received", data);
 
-        final Json content = getContent(data);
+            final Json content = getContent(data);
 
-        final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
 
-        final Json response = service.putRequest(buildUrl(data.string("path")), data.json("params"), content, functionId);
-        logger.info(String.format("Function PUT: [%s]", response.toString()));
-        return response;
+            final Json response = service.putRequest(buildUrl(data.string("path")), data.json("params"), content, functionId);
+            logger.info(String.format("Function PUT: [%s]", response.toString()));
+            return response;
+        }
     }
 
     @EndpointFunction(name = "_patchRequest")
     public Json patchRequest(FunctionRequest request){
-        final Json data = request.getJsonParams();
-        final String userId = request.getUserId();
-        final String functionId = request.getFunctionId();
-        appLogs.info("PATCH request received", data);
+        try (Tracer.Trace trace = startTrace(request, "_patchRequest");
+             Deadline.Scope deadline = startDeadline(request);
+             Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.MUTATION)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("PATCH request received", data);
 
-        final Json content = getContent(data);
+            final Json content = getContent(data);
 
-        final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
 
-        final Json response = service.patchRequest(buildUrl(data.string("path")), data.json("params"), content, functionId);
-        logger.info(String.format("Function PATCH: [%s]", response.toString()));
-        return response;
+            final Json response = service.patchRequest(buildUrl(data.string("path")), data.json("params"), content, functionId);
+            logger.info(String.format("Function PATCH: [%s]", response.toString()));
+            return response;
+        }
     }
 
     @EndpointFunction(name = "_deleteRequest")
     public Json deleteRequest(FunctionRequest request){
-        final Json data = request.getJsonParams();
-        final String userId = request.getUserId();
-        final String functionId = request.getFunctionId();
-        appLogs.info("DELETE request received", data);
-
-        final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
-
-        final Json response = service.deleteRequest(buildUrl(data.string("path")), data.json("params"), functionId);
-        logger.info(String.format("Function DELETE: [%s]", response.toString()));
-        return response;
+        try (Tracer.Trace trace = startTrace(request, "_deleteRequest");
+             Deadline.Scope deadline = startDeadline(request);
+             Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.MUTATION)) {
+            final Json data = request.getJsonParams();
+            final String userId = request.getUserId();
+            final String functionId = request.getFunctionId();
+            appLogs.info("DELETE request received", data);
+
+            final GoogleDriveService service = getService(data, userId, request.getUserEmail(), functionId);
+
+            final Json response = service.deleteRequest(buildUrl(data.string("path")), data.json("params"), functionId);
+            logger.info(String.format("Function DELETE: [%s]", response.toString()));
+            return response;
+        }
     }
 
     private Json getContent(Json body) {
@@ -686,6 +1867,43 @@ public class GoogleDriveEndpoint extends PerUserEndpoint {
         return content;
     }
 
+    /**
+     * Starts the trace of a function call, which is exported only if the call is slow
+     */
+    private Tracer.Trace startTrace(FunctionRequest request, String function) {
+        return Tracer.start(function, request.getFunctionId(), request.getUserId());
+    }
+
+    /**
+     * Starts the deadline of a function call. The budget is the request timeout of the endpoint, or
+     * the {@code timeout} parameter of the call (in milliseconds) when it is lower.
+     */
+    private Deadline.Scope startDeadline(FunctionRequest request) {
+        long timeout = NumberUtils.toLong(requestTimeout, DEFAULT_REQUEST_TIMEOUT) * 1000;
+        final Json data = request.getJsonParams();
+        if (data != null) {
+            final Long requested = data.longInteger("timeout");
+            if (requested != null && requested > 0) {
+                timeout = Math.min(timeout, requested);
+            }
+        }
+        return Deadline.start(timeout);
+    }
+
+    private static boolean boolParam(Json data, String key) {
+        return data.contains(key) && Boolean.TRUE.equals(data.bool(key));
+    }
+
+    private static int intParam(Json data, String key, int defaultValue) {
+        final Integer value = data.integer(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private static long longParam(Json data, String key, long defaultValue) {
+        final Long value = data.longInteger(key);
+        return value != null ? value : defaultValue;
+    }
+
     private String buildUrl(String path) {
         if (path != null) {
             if (path.startsWith("https://")) {
@@ -0,0 +1,184 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.googledrive.services.utils.StreamUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * <p>Disk cache of downloaded and exported files
+ *
+ * <p>Keys must identify the content, so they include the version of the file. Entries are evicted
+ * in least recently used order when the total size goes over the limit. Files are written to a
+ * temporary name and moved into place, and concurrent requests for the same key wait for a single fill.
+ */
+public class ArtifactCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ArtifactCache.class);
+
+    public interface Filler {
+        void fill(OutputStream out) throws IOException;
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+    private long totalBytes = 0;
+
+    public ArtifactCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        try {
+            Files.createDirectories(directory);
+            // entries of a previous process are not indexed, so they are removed
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("Artifact cache directory [%s] could not be prepared [%s]", directory, e.getMessage()));
+        }
+    }
+
+    /**
+     * Opens the cached content for the key, filling it first if it is not cached
+     *
+     * @param key key that identifies the content, including its version
+     * @param filler writes the content when it is not cached
+     * @return stream over the cached content
+     * @throws IOException if the content can not be filled or read
+     */
+    public InputStream open(String key, Filler filler) throws IOException {
+        final String name = fileName(key);
+        final InputStream cached = openIfCached(name);
+        if (cached != null) {
+            EndpointMetrics.increment("artifactCache.hits");
+            return cached;
+        }
+
+        final CompletableFuture<Path> fill = new CompletableFuture<>();
+        final CompletableFuture<Path> existing = inFlight.putIfAbsent(name, fill);
+        if (existing != null) {
+            EndpointMetrics.increment("artifactCache.waits");
+            await(existing);
+            final InputStream filled = openIfCached(name);
+            // evicted by other fills before it could be opened, so it is filled again
+            return filled != null ? filled : open(key, filler);
+        }
+
+        EndpointMetrics.increment("artifactCache.misses");
+        try {
+            final InputStream filled = write(name, filler);
+            fill.complete(directory.resolve(name));
+            return filled;
+        } catch (IOException | RuntimeException e) {
+            fill.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(name, fill);
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private synchronized InputStream openIfCached(String name) throws IOException {
+        if (entries.get(name) == null) {
+            return null;
+        }
+        try {
+            // opened while holding the lock, so a concurrent eviction can not remove it before
+            return Files.newInputStream(directory.resolve(name));
+        } catch (NoSuchFileException e) {
+            totalBytes -= entries.remove(name);
+            return null;
+        }
+    }
+
+    /**
+     * @return stream over the written content, opened before any other fill can evict it
+     */
+    private InputStream write(String name, Filler filler) throws IOException {
+        final Path temp = Files.createTempFile(directory, "fill-", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                filler.fill(out);
+            }
+            final Path target = directory.resolve(name);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return registerAndOpen(name, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private synchronized InputStream registerAndOpen(String name, Path target) throws IOException {
+        // opened while holding the lock, so the eviction of a concurrent register can not remove it before
+        final InputStream in = Files.newInputStream(target);
+        register(name, Files.size(target));
+        return in;
+    }
+
+    private synchronized void register(String name, long size) {
+        final Long previous = entries.put(name, size);
+        totalBytes += size - (previous != null ? previous : 0);
+        final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            final Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(name)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                logger.info(String.format("Cached artifact [%s] could not be deleted [%s]", eldest.getKey(), e.getMessage()));
+            }
+            totalBytes -= eldest.getValue();
+            it.remove();
+            EndpointMetrics.increment("artifactCache.evictions");
+        }
+    }
+
+    private static Path await(CompletableFuture<Path> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the artifact", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause() != null ? e.getCause().getMessage() : e.getMessage(), e.getCause());
+        }
+    }
+
+    private static String fileName(String key) {
+        try {
+            return StreamUtils.toHex(MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 algorithm is not available", e);
+        }
+    }
+}
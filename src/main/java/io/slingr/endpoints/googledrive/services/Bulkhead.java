@@ -0,0 +1,105 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.googledrive.services.utils.Deadline;
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.utils.Json;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Limits the number of concurrent operations of a class, like media transfers or metadata lookups
+ *
+ * <p>Operations over the limit wait in a bounded queue. When the queue is full, or the wait goes over
+ * the maximum wait time or the deadline of the request, the operation is rejected with a retryable
+ * error instead of waiting forever.
+ */
+public class Bulkhead {
+
+    private final String name;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxWait;
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    public Bulkhead(String name, int maxConcurrent, int maxQueued, long maxWait) {
+        this.name = name;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.maxWait = maxWait;
+        this.permits = new Semaphore(this.maxConcurrent, true);
+    }
+
+    public final class Permit implements AutoCloseable {
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit() {
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Takes a slot of the bulkhead, waiting in the queue if there is none available
+     *
+     * @return permit that must be closed when the operation finishes
+     * @throws EndpointException retryable exception if the operation is shed
+     */
+    public Permit acquire() {
+        if (permits.tryAcquire()) {
+            return new Permit();
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            throw reject("the queue is full");
+        }
+        EndpointMetrics.increment("bulkhead." + name + ".queued");
+        try {
+            long wait = maxWait;
+            final Deadline deadline = Deadline.current();
+            if (deadline != null) {
+                wait = Math.min(wait, deadline.remainingMillis());
+            }
+            if (!permits.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                throw reject("no slot was released in time");
+            }
+            return new Permit();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject("interrupted while waiting");
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    private EndpointException reject(String reason) {
+        EndpointMetrics.increment("bulkhead." + name + ".rejected");
+        return EndpointException.retryable(ErrorCode.API, String.format("Too many [%s] operations in progress, %s. Try again later.", name, reason)).returnCode(503);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public Json toJson() {
+        return Json.map()
+                .set("maxConcurrent", maxConcurrent)
+                .set("maxQueued", maxQueued)
+                .set("active", maxConcurrent - permits.availablePermits())
+                .set("queued", queued.get());
+    }
+}
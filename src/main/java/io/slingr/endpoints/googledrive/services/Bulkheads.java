@@ -0,0 +1,90 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * <p>Bulkheads of the endpoint, one per operation class
+ *
+ * <p>Heavy media transfers can not take the slots of quick metadata lookups, and token refreshes have
+ * their own slots so they are not starved by the operations that need them. Bulk functions transfer their
+ * items in their own class, and the workers of a batch are limited to its concurrency. Limits can be overridden
+ * per class with a JSON map like {@code {"transfer": {"concurrency": 8, "queue": 16, "maxWait": 30000}}}.
+ */
+public class Bulkheads {
+
+    private static final Logger logger = LoggerFactory.getLogger(Bulkheads.class);
+
+    public enum OperationClass {
+        METADATA(32, 64, 10 * 1000),
+        MUTATION(16, 32, 10 * 1000),
+        TRANSFER(4, 8, 30 * 1000),
+        // items of bulk functions, so one batch can not take the transfer slots of single calls
+        BULK(8, 64, 30 * 1000),
+        AUTH(8, 32, 10 * 1000);
+
+        private final int concurrency;
+        private final int queue;
+        private final long maxWait;
+
+        OperationClass(int concurrency, int queue, long maxWait) {
+            this.concurrency = concurrency;
+            this.queue = queue;
+            this.maxWait = maxWait;
+        }
+
+        public String key() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final Map<OperationClass, Bulkhead> bulkheads = new EnumMap<>(OperationClass.class);
+
+    public Bulkheads(Json overrides) {
+        for (OperationClass operationClass : OperationClass.values()) {
+            final Json override = overrides != null ? overrides.json(operationClass.key()) : null;
+            int concurrency = operationClass.concurrency;
+            int queue = operationClass.queue;
+            long maxWait = operationClass.maxWait;
+            if (override != null) {
+                concurrency = override.integer("concurrency") != null ? override.integer("concurrency") : concurrency;
+                queue = override.integer("queue") != null ? override.integer("queue") : queue;
+                maxWait = override.longInteger("maxWait") != null ? override.longInteger("maxWait") : maxWait;
+            }
+            bulkheads.put(operationClass, new Bulkhead(operationClass.key(), concurrency, queue, maxWait));
+        }
+    }
+
+    public Bulkhead get(OperationClass operationClass) {
+        return bulkheads.get(operationClass);
+    }
+
+    public Bulkhead.Permit acquire(OperationClass operationClass) {
+        return bulkheads.get(operationClass).acquire();
+    }
+
+    public Json toJson() {
+        final Json json = Json.map();
+        for (Map.Entry<OperationClass, Bulkhead> entry : bulkheads.entrySet()) {
+            json.set(entry.getKey().key(), entry.getValue().toJson());
+        }
+        return json;
+    }
+
+    public static Bulkheads fromConfiguration(String overrides) {
+        Json json = null;
+        if (StringUtils.isNotBlank(overrides)) {
+            try {
+                json = Json.parse(overrides);
+            } catch (Exception e) {
+                logger.warn(String.format("Invalid bulkheads configuration [%s]", e.getMessage()));
+            }
+        }
+        return new Bulkheads(json);
+    }
+}
@@ -0,0 +1,125 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Per user circuit breaker for credentials that are known to be invalid
+ *
+ * <p>When the credentials of a user fail (revoked or expired grant), the circuit of the user is opened and
+ * the following requests fail fast without contacting Google. Once the open period ends the circuit is
+ * half-open: a single request is allowed as probe, and the circuit is closed if it succeeds or opened
+ * again if it fails.
+ */
+public class CredentialCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public enum Permit {
+        ALLOWED, PROBE, REJECTED
+    }
+
+    private static final long DEFAULT_OPEN_DURATION = 60 * 1000;
+
+    private final long openDuration;
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    public CredentialCircuitBreaker() {
+        this(DEFAULT_OPEN_DURATION);
+    }
+
+    public CredentialCircuitBreaker(long openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Checks if a request of the user can go through
+     *
+     * @param userId user id
+     * @return {@link Permit#ALLOWED} when the circuit is closed, {@link Permit#PROBE} for the single
+     * request allowed when the circuit is half-open, and {@link Permit#REJECTED} otherwise
+     */
+    public Permit acquire(String userId) {
+        final Circuit circuit = userId != null ? circuits.get(userId) : null;
+        if (circuit == null) {
+            return Permit.ALLOWED;
+        }
+        if (System.currentTimeMillis() - circuit.openedAt < openDuration) {
+            EndpointMetrics.increment("circuitBreaker.rejected");
+            return Permit.REJECTED;
+        }
+        if (circuit.probing.compareAndSet(false, true)) {
+            EndpointMetrics.increment("circuitBreaker.probes");
+            return Permit.PROBE;
+        }
+        EndpointMetrics.increment("circuitBreaker.rejected");
+        return Permit.REJECTED;
+    }
+
+    /**
+     * The credentials of the user worked, so the circuit is closed
+     */
+    public void onSuccess(String userId) {
+        if (userId != null && circuits.remove(userId) != null) {
+            EndpointMetrics.increment("circuitBreaker.closed");
+        }
+    }
+
+    /**
+     * The credentials of the user are invalid, so the circuit is opened
+     *
+     * @return true if the circuit was closed before, so the caller is the one that must handle
+     * the failure (like disconnecting the user)
+     */
+    public boolean onCredentialFailure(String userId) {
+        if (userId == null) {
+            return false;
+        }
+        final Circuit previous = circuits.put(userId, new Circuit(System.currentTimeMillis()));
+        if (previous == null) {
+            EndpointMetrics.increment("circuitBreaker.opened");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The probe failed for a reason not related to the credentials, so another probe is allowed
+     */
+    public void release(String userId, Permit permit) {
+        if (permit == Permit.PROBE && userId != null) {
+            final Circuit circuit = circuits.get(userId);
+            if (circuit != null) {
+                circuit.probing.set(false);
+            }
+        }
+    }
+
+    public void reset(String userId) {
+        if (userId != null) {
+            circuits.remove(userId);
+        }
+    }
+
+    public State state(String userId) {
+        final Circuit circuit = userId != null ? circuits.get(userId) : null;
+        if (circuit == null) {
+            return State.CLOSED;
+        }
+        return System.currentTimeMillis() - circuit.openedAt < openDuration ? State.OPEN : State.HALF_OPEN;
+    }
+
+    private static class Circuit {
+        private final long openedAt;
+        private final AtomicBoolean probing = new AtomicBoolean(false);
+
+        private Circuit(long openedAt) {
+            this.openedAt = openedAt;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package io.slingr.endpoints.googledrive.services;
+
+import com.google.api.services.drive.model.TeamDrive;
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.googledrive.services.entities.ApiException;
+import io.slingr.endpoints.googledrive.services.utils.Deadline;
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * <p>Searches files in My Drive and in all the shared drives of the user at the same time
+ *
+ * <p>The query runs in each drive in parallel, with a bounded number of drives at once, and the
+ * results are merged by the requested order. No drive can contribute more files than the page size,
+ * but Drive can return shorter pages (even empty ones) that still have a next page. When a drive runs
+ * out of files of its page while the merged page is not filled, its next page is fetched before going
+ * on, as its next files could sort before the files of the other drives. When no order is requested,
+ * the search stops as soon as the page is filled and the drives that did not answer yet are skipped.
+ *
+ * <p>The next page token is a cursor with the page token and the number of consumed files of each
+ * drive, so the following page starts right after the last returned file of each drive. Drives that
+ * failed keep the position they had, so they are searched again in the next page.
+ */
+public class CrossDriveSearch {
+
+    private static final Logger logger = LoggerFactory.getLogger(CrossDriveSearch.class);
+
+    private static final String MY_DRIVE = "myDrive";
+    private static final String BASE_FIELDS = "id, name, mimeType, teamDriveId";
+
+    private final GoogleDriveService service;
+    private final Bulkhead bulkhead;
+    private final int concurrency;
+
+    /**
+     * @param bulkhead bulkhead that limits the requests to Drive, each request takes a permit while it runs
+     */
+    public CrossDriveSearch(GoogleDriveService service, Bulkhead bulkhead, int concurrency) {
+        this.service = service;
+        this.bulkhead = bulkhead;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Position in the results of one drive
+     */
+    private static final class Source {
+        private final String driveId;
+        private String pageToken;
+        private int skip;
+        private List<Json> files = Collections.emptyList();
+        private String nextPageToken;
+        private int consumed = 0;
+        private boolean failed = false;
+
+        private Source(String driveId, String pageToken, int skip) {
+            this.driveId = driveId;
+            this.pageToken = pageToken;
+            this.skip = skip;
+        }
+
+        private Json head() {
+            return consumed < files.size() ? files.get(consumed) : null;
+        }
+
+        /**
+         * @return true if the page is consumed and the drive has more pages
+         */
+        private boolean hasNextPage() {
+            return !failed && head() == null && StringUtils.isNotBlank(nextPageToken);
+        }
+
+        private void nextPage() {
+            pageToken = nextPageToken;
+            skip = 0;
+            files = Collections.emptyList();
+            nextPageToken = null;
+            consumed = 0;
+        }
+    }
+
+    /**
+     * Runs a page of the search
+     *
+     * @param q query, with the same syntax as {@code files.list}
+     * @param orderBy sort keys, with the same syntax as {@code files.list}, or null
+     * @param fields fields of each file; the ones needed to sort are added
+     * @param pageSize number of files of the page
+     * @param includeMyDrive if the files of My Drive are included
+     * @param cursor next page token returned by the previous page, or null for the first page
+     * @return the files, the next page token (if there are more files) and the drives that failed
+     */
+    public Json search(String q, String orderBy, String fields, int pageSize, boolean includeMyDrive, String cursor) throws IOException {
+        final List<Source> sources = sources(includeMyDrive, cursor);
+        final String requestedFields = fields(fields, orderBy);
+        final List<Json> failed = Collections.synchronizedList(new ArrayList<>());
+        final boolean ordered = StringUtils.isNotBlank(orderBy);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, sources.size())));
+        final CompletionService<Source> completion = new ExecutorCompletionService<>(executor);
+        final List<Source> answered = new ArrayList<>();
+        try {
+            for (Source source : sources) {
+                completion.submit(Deadline.propagate(() -> fetch(source, q, orderBy, requestedFields, pageSize, failed)));
+            }
+            int available = 0;
+            for (int i = 0; i < sources.size(); i++) {
+                final Source source = completion.take().get();
+                answered.add(source);
+                available += source.files.size() - source.consumed;
+                if (!ordered && available >= pageSize) {
+                    // any files are fine when there is no order, the rest of the drives are not needed
+                    EndpointMetrics.increment("search.earlyStops");
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw EndpointException.retryable(ErrorCode.GENERAL, "Interrupted while searching the drives");
+        } catch (ExecutionException e) {
+            throw ApiException.generate("Error searching the drives", e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final List<Json> files = merge(answered, ordered ? comparator(orderBy) : null, pageSize,
+                source -> fetch(source, q, orderBy, requestedFields, pageSize, failed));
+        final Json response = Json.map()
+                .set("files", files)
+                .set("drives", sources.size())
+                .set("failedDrives", failed);
+        final String next = cursor(sources, answered);
+        if (next != null) {
+            response.set("nextPageToken", next);
+        }
+        return response;
+    }
+
+    private Source fetch(Source source, String q, String orderBy, String fields, int pageSize, List<Json> failed) {
+        try (Bulkhead.Permit permit = acquire()) {
+            final Json page = service.searchFiles(MY_DRIVE.equals(source.driveId) ? null : source.driveId, q, orderBy, fields, pageSize, source.pageToken);
+            source.files = page.jsons("files") != null ? page.jsons("files") : Collections.emptyList();
+            source.nextPageToken = page.string("nextPageToken");
+            source.consumed = Math.min(source.skip, source.files.size());
+        } catch (Exception e) {
+            // one drive that fails does not fail the whole search
+            logger.info(String.format("Drive [%s] could not be searched [%s]", source.driveId, e.getMessage()));
+            failed.add(Json.map().set("driveId", source.driveId).set("error", e.getMessage()));
+            source.failed = true;
+        }
+        return source;
+    }
+
+    /**
+     * K-way merge of the pages of the drives, taking files until the page is filled. When a drive runs
+     * out of files and has more pages, its next page is fetched, and if that fails the merge stops, as
+     * the rest of the files could not be in order.
+     */
+    private static List<Json> merge(List<Source> sources, Comparator<Json> order, int pageSize, Consumer<Source> fetch) {
+        final List<Json> files = new ArrayList<>();
+        if (order == null) {
+            for (Source source : sources) {
+                while (files.size() < pageSize && source.head() != null) {
+                    files.add(source.files.get(source.consumed++));
+                }
+            }
+            return files;
+        }
+        final PriorityQueue<Source> heads = new PriorityQueue<>((a, b) -> order.compare(a.head(), b.head()));
+        for (Source source : sources) {
+            if (!fillPage(source, fetch)) {
+                return files;
+            }
+            if (source.head() != null) {
+                heads.add(source);
+            }
+        }
+        while (files.size() < pageSize && !heads.isEmpty()) {
+            final Source source = heads.poll();
+            files.add(source.files.get(source.consumed++));
+            if (files.size() < pageSize && !fillPage(source, fetch)) {
+                break;
+            }
+            if (source.head() != null) {
+                heads.add(source);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Fetches the next pages of the drive until it has files or no more pages
+     *
+     * @return false if a page could not be fetched
+     */
+    private static boolean fillPage(Source source, Consumer<Source> fetch) {
+        while (source.hasNextPage()) {
+            source.nextPage();
+            EndpointMetrics.increment("search.shortPages");
+            fetch.accept(source);
+            if (source.failed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Source> sources(boolean includeMyDrive, String cursor) throws IOException {
+        final List<Source> sources = new ArrayList<>();
+        if (StringUtils.isNotBlank(cursor)) {
+            final Json positions;
+            try {
+                positions = Json.parse(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, "Invalid page token").returnCode(400);
+            }
+            for (String driveId : positions.keys()) {
+                final Json position = positions.json(driveId);
+                final Integer skip = position.integer("skip");
+                sources.add(new Source(driveId, position.string("pageToken"), skip != null ? skip : 0));
+            }
+            return sources;
+        }
+        if (includeMyDrive) {
+            sources.add(new Source(MY_DRIVE, null, 0));
+        }
+        final List<TeamDrive> drives;
+        try (Bulkhead.Permit permit = acquire()) {
+            drives = service.listTeamDrives();
+        }
+        for (TeamDrive drive : drives) {
+            sources.add(new Source(drive.getId(), null, 0));
+        }
+        return sources;
+    }
+
+    private Bulkhead.Permit acquire() {
+        return bulkhead != null ? bulkhead.acquire() : null;
+    }
+
+    /**
+     * @return cursor with the position of each drive that still has files, or null if there are no more
+     */
+    private static String cursor(List<Source> sources, List<Source> answered) {
+        final Json positions = Json.map();
+        for (Source source : sources) {
+            if (!answered.contains(source) || source.failed) {
+                // not needed for this page or failed, it starts again from the same position
+                positions.set(source.driveId, Json.map().set("pageToken", source.pageToken).set("skip", source.skip));
+            } else if (source.head() != null) {
+                positions.set(source.driveId, Json.map().set("pageToken", source.pageToken).set("skip", source.consumed));
+            } else if (StringUtils.isNotBlank(source.nextPageToken)) {
+                positions.set(source.driveId, Json.map().set("pageToken", source.nextPageToken).set("skip", 0));
+            }
+        }
+        if (positions.isEmpty()) {
+            return null;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(positions.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String fields(String fields, String orderBy) {
+        final Set<String> all = new LinkedHashSet<>();
+        for (String field : StringUtils.split(StringUtils.isNotBlank(fields) ? fields + "," + BASE_FIELDS : BASE_FIELDS, ',')) {
+            all.add(field.trim());
+        }
+        if (StringUtils.isNotBlank(orderBy)) {
+            for (String key : StringUtils.split(orderBy, ',')) {
+                final String field = sortField(StringUtils.split(key.trim(), ' ')[0]);
+                if (field != null) {
+                    all.add(field);
+                }
+            }
+        }
+        return StringUtils.join(all, ", ");
+    }
+
+    /**
+     * Field of the file that holds the value of a sort key
+     */
+    private static String sortField(String key) {
+        switch (key) {
+            case "folder":
+                return "mimeType";
+            case "name_natural":
+                return "name";
+            case "recency":
+                return "modifiedTime";
+            case "createdTime":
+            case "modifiedByMeTime":
+            case "modifiedTime":
+            case "name":
+            case "quotaBytesUsed":
+            case "sharedWithMeTime":
+            case "starred":
+            case "viewedByMeTime":
+                return key;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Comparator equivalent to the order of {@code files.list}. Times are compared as RFC 3339 strings,
+     * which Drive returns in UTC, and names are compared ignoring case.
+     */
+    static Comparator<Json> comparator(String orderBy) {
+        Comparator<Json> comparator = null;
+        for (String key : StringUtils.split(orderBy, ',')) {
+            final String[] parts = StringUtils.split(key.trim(), ' ');
+            final String name = parts[0];
+            final String field = sortField(name);
+            if (field == null) {
+                throw EndpointException.permanent(ErrorCode.ARGUMENT, String.format("Invalid sort key [%s]", name)).returnCode(400);
+            }
+            final boolean descending = parts.length > 1 && "desc".equalsIgnoreCase(parts[1]);
+            final Comparator<Json> keyComparator = (a, b) -> compare(sortValue(a, name, field), sortValue(b, name, field), descending);
+            comparator = comparator == null ? keyComparator : comparator.thenComparing(keyComparator);
+        }
+        if (comparator == null) {
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, "Invalid order").returnCode(400);
+        }
+        return comparator.thenComparing(file -> StringUtils.defaultString(file.string("id")));
+    }
+
+    /**
+     * Files without the value go last in both directions
+     */
+    @SuppressWarnings("unchecked")
+    private static int compare(Comparable a, Comparable b, boolean descending) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : 1) : -1;
+        }
+        final int result = a.compareTo(b);
+        return descending ? -result : result;
+    }
+
+    private static Comparable sortValue(Json file, String key, String field) {
+        if ("folder".equals(key)) {
+            // folders first
+            return FolderArchiver.FOLDER_MIME_TYPE.equals(file.string("mimeType")) ? 0 : 1;
+        }
+        final Object value = file.toMap().get(field);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Boolean) {
+            return value;
+        }
+        final String text = value.toString();
+        if ("quotaBytesUsed".equals(field) && StringUtils.isNumeric(text)) {
+            return Long.parseLong(text);
+        }
+        return "name".equals(field) ? text.toLowerCase() : text;
+    }
+}
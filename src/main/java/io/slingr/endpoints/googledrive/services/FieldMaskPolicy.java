@@ -0,0 +1,346 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Default field masks for read requests that do not specify the {@code fields} parameter
+ *
+ * <p>Masks are defined per resource method (like {@code files.list}), and the defaults can be overridden
+ * per application. The default masks are the fields Drive returns when no fields are requested, so
+ * enabling them does not change the responses. In learning mode masks are not applied, and the fields
+ * present in the responses are recorded per resource method, so they can be used to define the masks
+ * of the application.
+ *
+ * <p>When masks are enabled a small sample of the requests asks for all the fields ({@code fields=*}),
+ * and the response is trimmed to the mask before returning it, so the response has the same fields as
+ * the masked ones and the bytes saved by the mask, compared with the whole resource, can be measured.
+ */
+public class FieldMaskPolicy {
+
+    private static final Logger logger = LoggerFactory.getLogger(FieldMaskPolicy.class);
+
+    public enum Mode {
+        ENABLED, LEARNING, DISABLED;
+
+        public static Mode from(String value) {
+            for (Mode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value)) {
+                    return mode;
+                }
+            }
+            return LEARNING;
+        }
+    }
+
+    private static final Map<String, String> DEFAULT_MASKS = new HashMap<>();
+    static {
+        // same fields that Drive returns when the request does not indicate them
+        DEFAULT_MASKS.put("files.get", "kind, id, name, mimeType");
+        DEFAULT_MASKS.put("files.list", "kind, nextPageToken, incompleteSearch, files(kind, id, name, mimeType)");
+    }
+
+    public static final String ALL_FIELDS = "*";
+
+    // unmasked requests of each resource method needed to know the size of its responses
+    private static final int BASELINE_REQUESTS = 5;
+    // after the baseline, one of these many requests is sent without mask
+    private static final int SAMPLE_INTERVAL = 100;
+
+    // segments that are methods and not ids, like /files/generateIds
+    private static final Set<String> METHOD_SEGMENTS = new HashSet<>(Arrays.asList(
+            "generateIds", "trash", "startPageToken", "watch", "stop", "copy", "export", "hide", "unhide"));
+
+    private final Mode mode;
+    private final Map<String, String> masks = new HashMap<>(DEFAULT_MASKS);
+    private final Map<String, Usage> usages = new ConcurrentHashMap<>();
+
+    public FieldMaskPolicy(Mode mode, Json overrides) {
+        this.mode = mode;
+        if (overrides != null) {
+            for (String resource : overrides.keys()) {
+                final String mask = overrides.string(resource);
+                if (StringUtils.isBlank(mask)) {
+                    masks.remove(resource);
+                } else {
+                    masks.put(resource, mask);
+                }
+            }
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Name of the resource method of a request, like {@code files.get} or {@code permissions.list}
+     *
+     * @param url url of the request, including the API base path
+     * @return resource method, or null if it can not be determined
+     */
+    public static String resource(String url) {
+        if (url == null) {
+            return null;
+        }
+        String path = url;
+        final int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        final int version = path.indexOf("/v3/");
+        path = version >= 0 ? path.substring(version + 4) : path;
+        final String[] segments = StringUtils.split(path, '/');
+        if (segments.length == 0) {
+            return null;
+        }
+        final String last = segments[segments.length - 1];
+        if (segments.length > 1 && METHOD_SEGMENTS.contains(last)) {
+            return segments[segments.length - 2 - (segments.length % 2 == 0 ? 0 : 1)] + "." + last;
+        }
+        // collections are in even positions and ids in odd positions
+        if (segments.length % 2 == 1) {
+            return last + ".list";
+        }
+        return segments[segments.length - 2] + ".get";
+    }
+
+    /**
+     * @return the mask to apply to a GET request without fields, or null if no mask must be applied
+     */
+    public String maskFor(String resource) {
+        if (mode != Mode.ENABLED || resource == null) {
+            return null;
+        }
+        return masks.get(resource);
+    }
+
+    /**
+     * Decides if a request that has a mask asks for all the fields instead, to measure the size of the whole resource.
+     * The response of a sampled request must be trimmed with {@link #project(Json, String)}.
+     *
+     * @param resource resource method of the request
+     * @return true if the mask must not be applied to this request
+     */
+    public boolean sampleUnmasked(String resource) {
+        if (resource == null) {
+            return false;
+        }
+        final Usage usage = usages.computeIfAbsent(resource, key -> new Usage());
+        final long request = usage.requests.getAndIncrement();
+        return request < BASELINE_REQUESTS || request % SAMPLE_INTERVAL == 0;
+    }
+
+    /**
+     * Keeps only the fields of a mask in a response, so a response fetched without mask has the same
+     * fields as the masked one. Nested fields like {@code files(id, name)} are supported.
+     *
+     * @param response response of the request
+     * @param mask field mask
+     * @return the response with the fields of the mask
+     */
+    public static Json project(Json response, String mask) {
+        if (response == null || StringUtils.isBlank(mask)) {
+            return response;
+        }
+        return select(response, parseMask(mask));
+    }
+
+    private static Json select(Json json, Map<String, String> fields) {
+        if (fields.containsKey("*")) {
+            return json;
+        }
+        final Json result = Json.map();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (!json.contains(field.getKey())) {
+                continue;
+            }
+            final Object value = json.object(field.getKey());
+            if (field.getValue() == null) {
+                result.set(field.getKey(), value);
+            } else if (value instanceof List) {
+                final List<Json> items = new ArrayList<>();
+                for (Json item : json.jsons(field.getKey())) {
+                    items.add(select(item, parseMask(field.getValue())));
+                }
+                result.set(field.getKey(), items);
+            } else if (value instanceof Json || value instanceof Map) {
+                result.set(field.getKey(), select(json.json(field.getKey()), parseMask(field.getValue())));
+            } else {
+                result.set(field.getKey(), value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the fields of the first level of a mask, with the mask of their sub fields or null
+     */
+    private static Map<String, String> parseMask(String mask) {
+        final Map<String, String> fields = new LinkedHashMap<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= mask.length(); i++) {
+            final char c = i < mask.length() ? mask.charAt(i) : ',';
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                addField(fields, mask.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        return fields;
+    }
+
+    private static void addField(Map<String, String> fields, String field) {
+        if (field.isEmpty()) {
+            return;
+        }
+        final int open = field.indexOf('(');
+        final int slash = field.indexOf('/');
+        if (open > 0 && (slash < 0 || open < slash) && field.endsWith(")")) {
+            fields.put(field.substring(0, open).trim(), field.substring(open + 1, field.length() - 1));
+        } else if (slash > 0) {
+            // files/id is the same as files(id)
+            final String name = field.substring(0, slash);
+            final String sub = field.substring(slash + 1);
+            final String current = fields.get(name);
+            fields.put(name, fields.containsKey(name) && current == null ? null : current != null ? current + "," + sub : sub);
+        } else {
+            fields.put(field, null);
+        }
+    }
+
+    /**
+     * Records the size of a response of a request without fields and, in learning mode, the fields present in it.
+     * The size of a sampled request is the size before trimming it to the mask.
+     *
+     * @param resource resource method of the request
+     * @param response response of the request
+     * @param bytes size of the serialized response
+     * @param masked true if a default mask was applied to the request
+     */
+    public void observe(String resource, Json response, long bytes, boolean masked) {
+        if (resource == null || mode == Mode.DISABLED) {
+            return;
+        }
+        final Usage usage = usages.computeIfAbsent(resource, key -> new Usage());
+        if (masked) {
+            usage.maskedRequests.incrementAndGet();
+            usage.maskedBytes.addAndGet(bytes);
+            final long unmaskedRequests = usage.unmaskedRequests.get();
+            if (unmaskedRequests > 0) {
+                final long saved = usage.unmaskedBytes.get() / unmaskedRequests - bytes;
+                if (saved > 0) {
+                    EndpointMetrics.add("fieldMask.bytesSaved", saved);
+                }
+            }
+        } else {
+            usage.unmaskedRequests.incrementAndGet();
+            usage.unmaskedBytes.addAndGet(bytes);
+            if (mode == Mode.LEARNING && response != null) {
+                collect(response, usage.fields);
+            }
+        }
+    }
+
+    /**
+     * @return per resource method: applied mask, sizes of masked and unmasked responses, estimated
+     * bytes saved and, in learning mode, the observed fields with a suggested mask
+     */
+    public Json report() {
+        final Json report = Json.map().set("mode", mode.name().toLowerCase());
+        final Json resources = Json.map();
+        for (Map.Entry<String, Usage> entry : new TreeMap<>(usages).entrySet()) {
+            final Usage usage = entry.getValue();
+            final long masked = usage.maskedRequests.get();
+            final long unmasked = usage.unmaskedRequests.get();
+            final Json json = Json.map()
+                    .setIfNotNull("mask", masks.get(entry.getKey()))
+                    .set("maskedRequests", masked)
+                    .set("unmaskedRequests", unmasked);
+            if (masked > 0 && unmasked > 0) {
+                final long saved = usage.unmaskedBytes.get() / unmasked - usage.maskedBytes.get() / masked;
+                json.set("estimatedBytesSaved", Math.max(0, saved) * masked);
+            }
+            if (!usage.fields.isEmpty()) {
+                final List<String> fields = new ArrayList<>(new TreeSet<>(usage.fields.keySet()));
+                json.set("observedFields", fields);
+                json.set("suggestedMask", suggestMask(fields));
+            }
+            resources.set(entry.getKey(), json);
+        }
+        return report.set("resources", resources);
+    }
+
+    private static void collect(Json response, Map<String, Boolean> fields) {
+        for (String key : response.keys()) {
+            final Object value = response.object(key);
+            boolean nested = false;
+            if (value instanceof List) {
+                for (Object item : (List<?>) value) {
+                    final Collection<?> itemKeys = item instanceof Json ? ((Json) item).keys()
+                            : item instanceof Map ? ((Map<?, ?>) item).keySet() : null;
+                    if (itemKeys != null) {
+                        nested = true;
+                        for (Object itemKey : itemKeys) {
+                            fields.put(key + "/" + itemKey, Boolean.TRUE);
+                        }
+                    }
+                }
+            }
+            if (!nested) {
+                fields.put(key, Boolean.TRUE);
+            }
+        }
+    }
+
+    private static String suggestMask(List<String> fields) {
+        final Map<String, List<String>> nested = new TreeMap<>();
+        final List<String> parts = new ArrayList<>();
+        for (String field : fields) {
+            final int slash = field.indexOf('/');
+            if (slash > 0) {
+                nested.computeIfAbsent(field.substring(0, slash), key -> new ArrayList<>()).add(field.substring(slash + 1));
+            } else if (!"kind".equals(field)) {
+                parts.add(field);
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : nested.entrySet()) {
+            parts.remove(entry.getKey());
+            entry.getValue().remove("kind");
+            parts.add(entry.getKey() + "(" + StringUtils.join(entry.getValue(), ", ") + ")");
+        }
+        return StringUtils.join(parts, ", ");
+    }
+
+    public static FieldMaskPolicy fromConfiguration(String mode, String overrides) {
+        Json json = null;
+        if (StringUtils.isNotBlank(overrides)) {
+            try {
+                json = Json.parse(overrides);
+            } catch (Exception e) {
+                logger.warn(String.format("Invalid field masks configuration [%s]", e.getMessage()));
+            }
+        }
+        return new FieldMaskPolicy(Mode.from(mode), json);
+    }
+
+    private static class Usage {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong maskedRequests = new AtomicLong();
+        private final AtomicLong maskedBytes = new AtomicLong();
+        private final AtomicLong unmaskedRequests = new AtomicLong();
+        private final AtomicLong unmaskedBytes = new AtomicLong();
+        private final Map<String, Boolean> fields = new ConcurrentHashMap<>();
+    }
+}
@@ -0,0 +1,123 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Per user pool of file ids generated by Drive
+ *
+ * <p>Creating files with an id known beforehand lets the caller reference the file before the upload
+ * finishes, and makes a retried create fail with a conflict instead of creating a duplicate. Ids are
+ * generated in batches, and the pool of a user is refilled in background when it runs low. Creates
+ * only use ids that are already in the pool, so they never wait for Drive to generate them.
+ */
+public class FileIdPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileIdPool.class);
+
+    public static final int MAX_BATCH_SIZE = 1000;
+    private static final int BATCH_SIZE = 50;
+    private static final int LOW_WATERMARK = 10;
+
+    public interface Generator {
+        List<String> generate(int count) throws IOException;
+    }
+
+    private static final class Pool {
+        private final Queue<String> ids = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean refilling = new AtomicBoolean(false);
+    }
+
+    private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<>();
+    private final Executor executor;
+
+    public FileIdPool(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Takes ids from the pool of the user, generating them right away if the pool does not have enough
+     *
+     * @param userId user id
+     * @param count number of ids
+     * @param generator generates ids with the credentials of the user
+     * @return the ids, that can be used only once
+     * @throws IOException if the pool is empty and the ids can not be generated
+     */
+    public List<String> take(String userId, int count, Generator generator) throws IOException {
+        final Pool pool = pools.computeIfAbsent(userId, key -> new Pool());
+        final List<String> ids = new ArrayList<>(count);
+        String id;
+        while (ids.size() < count && (id = pool.ids.poll()) != null) {
+            ids.add(id);
+        }
+        if (ids.size() < count) {
+            EndpointMetrics.increment("fileIds.misses");
+            final int missing = count - ids.size();
+            final List<String> generated = generator.generate(Math.min(MAX_BATCH_SIZE, Math.max(missing, BATCH_SIZE)));
+            ids.addAll(generated.subList(0, Math.min(missing, generated.size())));
+            if (generated.size() > missing) {
+                pool.ids.addAll(generated.subList(missing, generated.size()));
+            }
+        } else {
+            EndpointMetrics.increment("fileIds.hits");
+        }
+        refillIfLow(userId, pool, generator);
+        return ids;
+    }
+
+    /**
+     * Takes an id from the pool of the user without waiting for Drive
+     *
+     * @param userId user id
+     * @param generator generates ids with the credentials of the user, used to refill the pool in background
+     * @return an id that can be used only once, or null if the pool is empty
+     */
+    public String poll(String userId, Generator generator) {
+        final Pool pool = pools.computeIfAbsent(userId, key -> new Pool());
+        final String id = pool.ids.poll();
+        EndpointMetrics.increment(id != null ? "fileIds.hits" : "fileIds.misses");
+        refillIfLow(userId, pool, generator);
+        return id;
+    }
+
+    /**
+     * Discards the ids of the user, for example when the user is disconnected
+     */
+    public void remove(String userId) {
+        if (userId != null) {
+            pools.remove(userId);
+        }
+    }
+
+    private void refillIfLow(String userId, Pool pool, Generator generator) {
+        if (pool.ids.size() < LOW_WATERMARK && pool.refilling.compareAndSet(false, true)) {
+            refillInBackground(userId, pool, generator);
+        }
+    }
+
+    private void refillInBackground(String userId, Pool pool, Generator generator) {
+        try {
+            executor.execute(() -> {
+                try {
+                    pool.ids.addAll(generator.generate(BATCH_SIZE));
+                    EndpointMetrics.increment("fileIds.refills");
+                } catch (Exception e) {
+                    logger.info(String.format("File ids of user [%s] could not be generated [%s]", userId, e.getMessage()));
+                } finally {
+                    pool.refilling.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pool.refilling.set(false);
+        }
+    }
+}
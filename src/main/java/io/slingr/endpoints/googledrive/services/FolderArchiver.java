@@ -0,0 +1,251 @@
+package io.slingr.endpoints.googledrive.services;
+
+import com.google.api.services.drive.model.File;
+import io.slingr.endpoints.googledrive.services.utils.Deadline;
+import io.slingr.endpoints.googledrive.services.utils.MimeExtensions;
+import io.slingr.endpoints.googledrive.services.utils.StreamUtils;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * <p>Walks a Google Drive folder and writes its content as a ZIP stream.
+ *
+ * <p>Entries are fetched ahead in parallel into temporary files, so the heap use does not depend
+ * on the size of the files, and they are copied into the ZIP stream in order. Files that can not be
+ * included (limits, unsupported types or errors) are reported in a manifest entry.
+ */
+public class FolderArchiver {
+
+    private static final Logger logger = LoggerFactory.getLogger(FolderArchiver.class);
+
+    public static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+    public static final String GOOGLE_APPS_PREFIX = "application/vnd.google-apps.";
+    public static final String DEFAULT_EXPORT_MIME_TYPE = "application/pdf";
+    public static final String MANIFEST_ENTRY = "_skipped.json";
+
+    private final GoogleDriveService service;
+    private final String exportMimeType;
+    private final int maxEntries;
+    private final long maxTotalBytes;
+    private final long maxFileBytes;
+    private final int prefetch;
+
+    public FolderArchiver(GoogleDriveService service, String exportMimeType, int maxEntries, long maxTotalBytes, long maxFileBytes, int prefetch) {
+        this.service = service;
+        this.exportMimeType = StringUtils.isNotBlank(exportMimeType) ? exportMimeType : DEFAULT_EXPORT_MIME_TYPE;
+        this.maxEntries = maxEntries;
+        this.maxTotalBytes = maxTotalBytes;
+        this.maxFileBytes = maxFileBytes;
+        this.prefetch = Math.max(1, prefetch);
+    }
+
+    /**
+     * Writes the content of the folder as a ZIP stream. The output stream is finished but not closed.
+     *
+     * @param folderId id of the folder to archive
+     * @param out stream where the ZIP is written
+     * @return summary with the number of entries, the written bytes and the skipped items
+     * @throws IOException if the folder can not be listed or the output stream fails
+     */
+    public Json archive(String folderId, OutputStream out) throws IOException {
+        final List<Json> skipped = new ArrayList<>();
+        final List<Entry> entries = walk(folderId, skipped);
+
+        final ZipOutputStream zip = new ZipOutputStream(out);
+        final ExecutorService executor = Executors.newFixedThreadPool(prefetch);
+        final Deque<Future<java.io.File>> window = new ArrayDeque<>();
+        int written = 0;
+        long totalBytes = 0;
+        try {
+            int next = 0;
+            for (Entry entry : entries) {
+                while (next < entries.size() && window.size() < prefetch) {
+                    final Entry ahead = entries.get(next++);
+                    window.addLast(executor.submit(Deadline.propagate(() -> fetch(ahead))));
+                }
+                final java.io.File tempFile = await(window.removeFirst(), entry, skipped);
+                if (tempFile == null) {
+                    continue;
+                }
+                try {
+                    final long length = tempFile.length();
+                    if (length > maxFileBytes) {
+                        skipped.add(skip(entry, "maxFileSize"));
+                    } else if (totalBytes + length > maxTotalBytes) {
+                        skipped.add(skip(entry, "maxTotalSize"));
+                    } else {
+                        zip.putNextEntry(new ZipEntry(entry.path));
+                        try (InputStream in = new FileInputStream(tempFile)) {
+                            StreamUtils.copy(in, zip);
+                        }
+                        zip.closeEntry();
+                        totalBytes += length;
+                        written++;
+                    }
+                } finally {
+                    tempFile.delete();
+                }
+            }
+            if (!skipped.isEmpty()) {
+                zip.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+                zip.write(Json.fromList(skipped).toString().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+            zip.finish();
+        } finally {
+            for (Future<java.io.File> pending : window) {
+                if (!pending.cancel(true)) {
+                    discard(pending);
+                }
+            }
+            executor.shutdownNow();
+        }
+        return Json.map()
+                .set("entries", written)
+                .set("bytes", totalBytes)
+                .set("skipped", skipped);
+    }
+
+    private List<Entry> walk(String folderId, List<Json> skipped) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        final Set<String> usedPaths = new HashSet<>();
+        final Set<String> visited = new HashSet<>();
+        final Deque<Entry> folders = new ArrayDeque<>();
+        // files with a known size are checked against the total before they are fetched
+        long plannedBytes = 0;
+        folders.add(new Entry(new File().setId(folderId).setMimeType(FOLDER_MIME_TYPE), ""));
+        while (!folders.isEmpty()) {
+            final Entry folder = folders.removeFirst();
+            if (!visited.add(folder.fileId)) {
+                continue;
+            }
+            for (File child : service.listChildren(folder.fileId)) {
+                final String name = StringUtils.isNotBlank(child.getName()) ? child.getName().replaceAll("/", "-") : child.getId();
+                if (FOLDER_MIME_TYPE.equals(child.getMimeType())) {
+                    folders.addLast(new Entry(child, folder.path + name + "/"));
+                    continue;
+                }
+                final boolean exported = isGoogleApps(child.getMimeType());
+                final String path = uniquePath(usedPaths, folder.path + (exported ? MimeExtensions.withExtension(name, exportMimeType) : name));
+                final Entry entry = new Entry(child, path);
+                if (entries.size() >= maxEntries) {
+                    skipped.add(skip(entry, "maxEntries"));
+                } else if (entry.size != null && entry.size > maxFileBytes) {
+                    skipped.add(skip(entry, "maxFileSize"));
+                } else if (entry.size != null && plannedBytes + entry.size > maxTotalBytes) {
+                    skipped.add(skip(entry, "maxTotalSize"));
+                } else {
+                    if (entry.size != null) {
+                        plannedBytes += entry.size;
+                    }
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private java.io.File fetch(Entry entry) throws IOException {
+        final java.io.File tempFile = java.io.File.createTempFile("googlezip-", "");
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            if (isGoogleApps(entry.mimeType)) {
+                service.export(entry.file, exportMimeType, out);
+            } else {
+                service.downloadFile(entry.fileId, out);
+            }
+        } catch (IOException | RuntimeException e) {
+            tempFile.delete();
+            throw e;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            // cancelled while it was fetched, nobody takes the file
+            tempFile.delete();
+            throw new IOException("Fetch of the folder entry was cancelled");
+        }
+        return tempFile;
+    }
+
+    /**
+     * Deletes the file of a prefetch that was already done when the archive stopped
+     */
+    private static void discard(Future<java.io.File> future) {
+        try {
+            final java.io.File tempFile = future.get();
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException e) {
+            // failed fetches already deleted their file
+        }
+    }
+
+    private java.io.File await(Future<java.io.File> future, Entry entry, List<Json> skipped) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching folder entries", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause() != null ? e.getCause() : e;
+            logger.info(String.format("File [%s] could not be included in the archive [%s]", entry.fileId, cause.getMessage()));
+            skipped.add(skip(entry, "error").set("message", cause.getMessage()));
+            return null;
+        }
+    }
+
+    private static String uniquePath(Set<String> usedPaths, String path) {
+        String candidate = path;
+        int counter = 1;
+        while (!usedPaths.add(candidate)) {
+            final int dot = path.lastIndexOf('.');
+            candidate = dot > path.lastIndexOf('/') + 1
+                    ? path.substring(0, dot) + " (" + counter + ")" + path.substring(dot)
+                    : path + " (" + counter + ")";
+            counter++;
+        }
+        return candidate;
+    }
+
+    private static boolean isGoogleApps(String mimeType) {
+        return mimeType != null && mimeType.startsWith(GOOGLE_APPS_PREFIX);
+    }
+
+    private static Json skip(Entry entry, String reason) {
+        return Json.map()
+                .set("fileId", entry.fileId)
+                .set("path", entry.path)
+                .setIfNotNull("size", entry.size)
+                .set("reason", reason);
+    }
+
+    private static class Entry {
+        private final File file;
+        private final String fileId;
+        private final String path;
+        private final String mimeType;
+        private final Long size;
+
+        private Entry(File file, String path) {
+            this.file = file;
+            this.fileId = file.getId();
+            this.path = path;
+            this.mimeType = file.getMimeType();
+            this.size = file.getSize();
+        }
+    }
+}
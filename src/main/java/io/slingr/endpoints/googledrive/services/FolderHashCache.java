@@ -0,0 +1,124 @@
+package io.slingr.endpoints.googledrive.services;
+
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Cache of the content hashes of the files in a folder, used to skip uploads of files that are
+ * already stored in the target folder.
+ *
+ * <p>Listings are kept per user and folder for a limited time. Uploads done through the endpoint are
+ * recorded in the cached listing, so changes done by other clients are only seen after the entry expires.
+ */
+public class FolderHashCache {
+
+    public interface Loader {
+        List<File> load(String folderId) throws IOException;
+    }
+
+    private static final long DEFAULT_TTL = 5 * 60 * 1000;
+    private static final int DEFAULT_MAX_FOLDERS = 1000;
+
+    private final long ttl;
+    private final int maxFolders;
+    private final Map<String, Listing> listings = new ConcurrentHashMap<>();
+
+    public FolderHashCache() {
+        this(DEFAULT_TTL, DEFAULT_MAX_FOLDERS);
+    }
+
+    public FolderHashCache(long ttl, int maxFolders) {
+        this.ttl = ttl;
+        this.maxFolders = maxFolders;
+    }
+
+    /**
+     * Looks for a file in the folder with the same content
+     *
+     * @return the file with the same MD5 checksum and size, or null if there is no one
+     */
+    public File findByContent(String userId, String folderId, String md5, long size, Loader loader) throws IOException {
+        for (File file : listing(userId, folderId, loader)) {
+            if (md5.equalsIgnoreCase(file.getMd5Checksum()) && file.getSize() != null && file.getSize() == size) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks for a file in the folder with the given name
+     *
+     * @return the first file with the same name, or null if there is no one
+     */
+    public File findByName(String userId, String folderId, String name, Loader loader) throws IOException {
+        for (File file : listing(userId, folderId, loader)) {
+            if (name.equals(file.getName())) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records a created or updated file in the cached listing of the folder, if it is cached
+     */
+    public void record(String userId, String folderId, File file) {
+        final Listing listing = listings.get(key(userId, folderId));
+        if (listing != null) {
+            synchronized (listing) {
+                listing.files.removeIf(f -> f.getId() != null && f.getId().equals(file.getId()));
+                listing.files.add(file);
+            }
+        }
+    }
+
+    public void invalidate(String userId, String folderId) {
+        listings.remove(key(userId, folderId));
+    }
+
+    public void invalidateUser(String userId) {
+        listings.keySet().removeIf(key -> key.startsWith(userId + ":"));
+    }
+
+    private List<File> listing(String userId, String folderId, Loader loader) throws IOException {
+        final String key = key(userId, folderId);
+        Listing listing = listings.get(key);
+        if (listing == null || listing.isExpired(ttl)) {
+            if (listings.size() >= maxFolders) {
+                listings.values().removeIf(l -> l.isExpired(ttl));
+                if (listings.size() >= maxFolders) {
+                    listings.clear();
+                }
+            }
+            listing = new Listing(loader.load(folderId));
+            listings.put(key, listing);
+        }
+        synchronized (listing) {
+            return Collections.unmodifiableList(new ArrayList<>(listing.files));
+        }
+    }
+
+    private static String key(String userId, String folderId) {
+        return userId + ":" + folderId;
+    }
+
+    private static class Listing {
+        private final long loadedAt = System.currentTimeMillis();
+        private final List<File> files;
+
+        private Listing(List<File> files) {
+            this.files = new ArrayList<>(files);
+        }
+
+        private boolean isExpired(long ttl) {
+            return System.currentTimeMillis() - loadedAt > ttl;
+        }
+    }
+}
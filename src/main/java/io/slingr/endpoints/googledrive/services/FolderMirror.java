@@ -0,0 +1,286 @@
+package io.slingr.endpoints.googledrive.services;
+
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.googledrive.services.utils.Deadline;
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>Mirrors the files of a Drive folder into Slingr files, downloading only what changed
+ *
+ * <p>A manifest per folder keeps, for each mirrored file, its checksum, head revision and modified
+ * time together with the Slingr file it was downloaded to. Each run lists the folder and downloads the
+ * new and changed files in parallel, and reports the files that are not in the folder anymore. The
+ * manifest also keeps a token of the changes feed: when no change since the last complete run touches
+ * the folder or its files, the folder is not listed again.
+ */
+public class FolderMirror {
+
+    private static final Logger logger = LoggerFactory.getLogger(FolderMirror.class);
+
+    public static final String MIRROR_FIELDS = "id, name, mimeType, size, version, modifiedTime, md5Checksum, headRevisionId";
+    private static final String CHANGES_FIELDS = "nextPageToken, newStartPageToken, changes(fileId, removed, file(parents))";
+    private static final int MAX_CHANGE_PAGES = 10;
+    // time kept to save the manifest and answer before the deadline passes
+    private static final long STOP_MARGIN = 5 * 1000;
+
+    public interface ManifestStore {
+        Json load(String id);
+
+        void save(Json manifest);
+    }
+
+    public interface Downloader {
+        /**
+         * @param file metadata of the file, with the fields in {@link #MIRROR_FIELDS}
+         * @return the Slingr file where the content was stored
+         */
+        Json download(File file) throws Exception;
+    }
+
+    private final GoogleDriveService service;
+    private final ManifestStore manifests;
+    private final Downloader downloader;
+    private final boolean exportDocs;
+    private final int workers;
+
+    public FolderMirror(GoogleDriveService service, ManifestStore manifests, Downloader downloader, boolean exportDocs, int workers) {
+        this.service = service;
+        this.manifests = manifests;
+        this.downloader = downloader;
+        this.exportDocs = exportDocs;
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Brings the mirror of the folder up to date
+     *
+     * @param manifestId id of the manifest of the folder
+     * @param folderId id of the folder
+     * @param full if true the folder is listed even if the changes feed shows no changes
+     * @return the added, updated, deleted, failed and skipped files, and the number of unchanged files
+     * @throws IOException if the folder or the changes can not be read
+     */
+    public Json mirror(String manifestId, String folderId, boolean full) throws IOException {
+        final Json manifest = manifests.load(manifestId);
+        final Json entries = manifest != null && manifest.json("files") != null ? manifest.json("files") : Json.map();
+        final boolean complete = manifest != null && Boolean.TRUE.equals(manifest.bool("complete"));
+        final QueryCache.ChangesFeed feed = service.changesFeed();
+
+        String changesToken = null;
+        if (!full && complete && StringUtils.isNotBlank(manifest.string("changesToken"))) {
+            final Scan scan = scanChanges(feed, manifest.string("changesToken"), folderId, entries);
+            if (scan != null && !scan.relevant) {
+                EndpointMetrics.increment("mirror.unchanged");
+                save(manifestId, folderId, entries, scan.token, true);
+                return new Report().toJson(folderId, true, entries.keys().size());
+            }
+            changesToken = scan != null ? scan.token : null;
+        }
+        if (changesToken == null) {
+            // taken before the listing, so changes done while the folder is mirrored are seen in the next run
+            changesToken = feed.startPageToken();
+        }
+
+        final Report report = new Report();
+        final List<File> pending = new ArrayList<>();
+        // entries of the files still in the folder, changed ones are replaced once they are downloaded
+        final Json kept = Json.map();
+        int unchanged = 0;
+        for (File file : service.listChildren(folderId, MIRROR_FIELDS)) {
+            if (FolderArchiver.FOLDER_MIME_TYPE.equals(file.getMimeType())) {
+                continue;
+            }
+            final boolean doc = file.getMimeType() != null && file.getMimeType().startsWith(FolderArchiver.GOOGLE_APPS_PREFIX);
+            if (doc && !exportDocs) {
+                report.skipped.add(Json.map().set("fileId", file.getId()).set("name", file.getName()).set("mimeType", file.getMimeType()));
+                continue;
+            }
+            final Json entry = entries.json(file.getId());
+            if (entry != null) {
+                kept.set(file.getId(), entry.set("name", file.getName()));
+            }
+            if (entry == null || isChanged(entry, file)) {
+                pending.add(file);
+            } else {
+                unchanged++;
+            }
+        }
+        for (String fileId : entries.keys()) {
+            if (kept.json(fileId) == null) {
+                final Json entry = entries.json(fileId);
+                report.deleted.add(Json.map().set("fileId", fileId).set("name", entry.string("name")).set("file", entry.json("file")));
+            }
+        }
+
+        final boolean downloaded = download(pending, kept, report);
+        save(manifestId, folderId, kept, changesToken, downloaded);
+        EndpointMetrics.add("mirror.downloads", pending.size());
+        return report.toJson(folderId, downloaded, unchanged);
+    }
+
+    /**
+     * Downloads the files in parallel, recording each downloaded file in the manifest entries
+     *
+     * @return true if all the files were downloaded
+     */
+    private boolean download(List<File> files, Json entries, Report report) {
+        if (files.isEmpty()) {
+            return true;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, files.size()));
+        final Map<File, Future<Json>> downloads = new LinkedHashMap<>();
+        boolean complete = true;
+        try {
+            for (File file : files) {
+                downloads.put(file, executor.submit(Deadline.propagate(() -> {
+                    if (isStopping()) {
+                        // left for the next run
+                        return null;
+                    }
+                    return downloader.download(file);
+                })));
+            }
+            for (Map.Entry<File, Future<Json>> download : downloads.entrySet()) {
+                final File file = download.getKey();
+                final boolean existed = entries.json(file.getId()) != null;
+                try {
+                    final Json stored = download.getValue().get();
+                    if (stored == null) {
+                        complete = false;
+                        continue;
+                    }
+                    entries.set(file.getId(), entry(file, stored));
+                    (existed ? report.updated : report.added).add(Json.map().set("fileId", file.getId()).set("name", file.getName()).set("file", stored));
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    Deadline.recordIfTimeout(cause);
+                    logger.info(String.format("File [%s] could not be mirrored [%s]", file.getId(), cause.getMessage()));
+                    report.failed.add(Json.map().set("fileId", file.getId()).set("name", file.getName()).set("error", cause.getMessage()));
+                    complete = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw EndpointException.retryable(ErrorCode.GENERAL, "Interrupted while mirroring the folder");
+        } finally {
+            executor.shutdownNow();
+        }
+        return complete;
+    }
+
+    /**
+     * Reads the changes since the last run and checks if any of them touches the folder or its files
+     *
+     * @return the scan, or null if the changes could not be read
+     */
+    private Scan scanChanges(QueryCache.ChangesFeed feed, String pageToken, String folderId, Json entries) {
+        boolean relevant = false;
+        try {
+            for (int page = 0; page < MAX_CHANGE_PAGES; page++) {
+                final ChangeList changes = feed.changes(pageToken, CHANGES_FIELDS);
+                if (changes.getChanges() != null) {
+                    for (Change change : changes.getChanges()) {
+                        relevant = relevant || isRelevant(change, folderId, entries);
+                    }
+                }
+                if (StringUtils.isNotBlank(changes.getNewStartPageToken())) {
+                    return new Scan(changes.getNewStartPageToken(), relevant);
+                }
+                pageToken = changes.getNextPageToken();
+                if (relevant) {
+                    // the folder is listed anyway, so the rest of the changes do not matter
+                    return new Scan(null, true);
+                }
+            }
+        } catch (Exception e) {
+            logger.info(String.format("Changes for folder [%s] could not be read [%s]", folderId, e.getMessage()));
+        }
+        return null;
+    }
+
+    private static boolean isRelevant(Change change, String folderId, Json entries) {
+        if (change.getFileId() != null && entries.json(change.getFileId()) != null) {
+            return true;
+        }
+        final List<String> parents = change.getFile() != null ? change.getFile().getParents() : null;
+        return parents != null && parents.contains(folderId);
+    }
+
+    private static boolean isChanged(Json entry, File file) {
+        if (StringUtils.isNotBlank(file.getMd5Checksum())) {
+            return !file.getMd5Checksum().equals(entry.string("md5Checksum"))
+                    || (file.getHeadRevisionId() != null && !file.getHeadRevisionId().equals(entry.string("headRevisionId")));
+        }
+        // Google Docs files have no checksum, their modified time and version are compared instead
+        final String modifiedTime = file.getModifiedTime() != null ? file.getModifiedTime().toStringRfc3339() : null;
+        return modifiedTime == null || !modifiedTime.equals(entry.string("modifiedTime"))
+                || (file.getVersion() != null && !file.getVersion().equals(entry.longInteger("version")));
+    }
+
+    private static Json entry(File file, Json stored) {
+        return Json.map()
+                .set("name", file.getName())
+                .setIfNotNull("md5Checksum", file.getMd5Checksum())
+                .setIfNotNull("headRevisionId", file.getHeadRevisionId())
+                .setIfNotNull("modifiedTime", file.getModifiedTime() != null ? file.getModifiedTime().toStringRfc3339() : null)
+                .setIfNotNull("version", file.getVersion())
+                .set("file", stored);
+    }
+
+    private void save(String manifestId, String folderId, Json entries, String changesToken, boolean complete) {
+        manifests.save(Json.map()
+                .set("_id", manifestId)
+                .set("folderId", folderId)
+                .set("files", entries)
+                .set("changesToken", changesToken)
+                .set("complete", complete)
+                .set("updatedAt", System.currentTimeMillis()));
+    }
+
+    private static boolean isStopping() {
+        final Deadline deadline = Deadline.current();
+        return deadline != null && deadline.remainingMillis() < STOP_MARGIN;
+    }
+
+    private static final class Report {
+        private final List<Json> added = new ArrayList<>();
+        private final List<Json> updated = new ArrayList<>();
+        private final List<Json> deleted = new ArrayList<>();
+        private final List<Json> failed = new ArrayList<>();
+        private final List<Json> skipped = new ArrayList<>();
+
+        private Json toJson(String folderId, boolean complete, int unchanged) {
+            return Json.map()
+                    .set("folderId", folderId)
+                    .set("complete", complete)
+                    .set("added", added)
+                    .set("updated", updated)
+                    .set("deleted", deleted)
+                    .set("failed", failed)
+                    .set("skipped", skipped)
+                    .set("unchanged", unchanged);
+        }
+    }
+
+    private static final class Scan {
+        private final String token;
+        private final boolean relevant;
+
+        private Scan(String token, boolean relevant) {
+            this.token = token;
+            this.relevant = relevant;
+        }
+    }
+}
@@ -1,14 +1,13 @@
 package io.slingr.endpoints.googledrive.services;
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.HttpResponseException;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.oauth2.Oauth2;
 import com.google.api.services.oauth2.model.Userinfoplus;
 import io.slingr.endpoints.exceptions.EndpointException;
 import io.slingr.endpoints.googledrive.services.entities.ApiException;
+import io.slingr.endpoints.googledrive.services.utils.DeadlineRequestInitializer;
+import io.slingr.endpoints.googledrive.services.utils.HttpTransports;
 import io.slingr.endpoints.utils.Json;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -37,11 +36,9 @@ public class GoogleAuthenticationService {
 
         final Oauth2 service;
         try {
-            final NetHttpTransport nt = GoogleNetHttpTransport.newTrustedTransport();
-            final JacksonFactory jf = new JacksonFactory();
             final GoogleCredential cd = new GoogleCredential().setAccessToken(token);
 
-            service = new Oauth2.Builder(nt, jf, cd)
+            service = new Oauth2.Builder(HttpTransports.trusted(), HttpTransports.jsonFactory(), new DeadlineRequestInitializer(cd))
                     .setApplicationName(applicationName)
                     .build();
         } catch (HttpResponseException e) {
@@ -55,10 +52,18 @@ public class GoogleAuthenticationService {
         this.service = service;
     }
 
+    /**
+     * @return profile of the user
+     * @throws IOException if Google rejects the request or can not be reached
+     */
+    public Json fetchUserInformation() throws IOException {
+        Userinfoplus info = service.userinfo().get().execute();
+        return Json.parse(info.toString());
+    }
+
     public Json getUserInformation() {
         try {
-            Userinfoplus info = service.userinfo().get().execute();
-            return Json.parse(info.toString());
+            return fetchUserInformation();
         } catch (EndpointException e) {
             return e.toJson(true);
         } catch (HttpResponseException e) {
@@ -3,15 +3,16 @@ package io.slingr.endpoints.googledrive.services;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeRequestUrl;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeTokenRequest;
 import com.google.api.client.googleapis.auth.oauth2.GoogleRefreshTokenRequest;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.auth.oauth2.TokenResponseException;
 import com.google.api.client.http.*;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.jackson.JacksonFactory;
 import io.slingr.endpoints.exceptions.EndpointException;
 import io.slingr.endpoints.exceptions.ErrorCode;
 import io.slingr.endpoints.exceptions.PermanentException;
 import io.slingr.endpoints.googledrive.GoogleDriveEndpoint;
 import io.slingr.endpoints.googledrive.services.entities.ValidToken;
+import io.slingr.endpoints.googledrive.services.utils.Deadline;
+import io.slingr.endpoints.googledrive.services.utils.DeadlineRequestInitializer;
+import io.slingr.endpoints.googledrive.services.utils.HttpTransports;
 import io.slingr.endpoints.utils.Json;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -19,7 +20,9 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class GoogleClient {
 
@@ -27,13 +30,22 @@ public class GoogleClient {
 
     private static final String ACCESS_TYPE = "offline";
     private static final String RESPONSE_TYPE = "code";
-    private static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
+    private static final String PROPERTY_REASON = "reason";
+    private static final int MAX_AUTHENTICATION_SERVICES = 256;
+    public static final String REASON_INVALID_CREDENTIALS = "invalidCredentials";
 
 	private final String application;
 	private final String clientId;
     private final String clientSecret;
     private final String defaultRedirectUri;
     private final List<ServiceType> services;
+    private Bulkhead authBulkhead = null;
+    private final Map<String, GoogleAuthenticationService> authenticationServices = new LinkedHashMap<String, GoogleAuthenticationService>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GoogleAuthenticationService> eldest) {
+            return size() > MAX_AUTHENTICATION_SERVICES;
+        }
+    };
 
 	public GoogleClient(String application, String clientId, String clientSecret, String redirectUri, ServiceType... services) {
 		this.application = application;
@@ -54,6 +66,13 @@ public class GoogleClient {
         }
 	}
 
+    /**
+     * Sets the bulkhead that limits the concurrent token refreshes
+     */
+    public void setAuthBulkhead(Bulkhead authBulkhead) {
+        this.authBulkhead = authBulkhead;
+    }
+
     public String generateAuthURL() {
         final List<String> scopes = new ArrayList<>();
         services.stream().forEach(service ->
@@ -79,7 +98,8 @@ public class GoogleClient {
             error = "Invalid user code: null";
         } else {
             try {
-                final GoogleAuthorizationCodeTokenRequest request = new GoogleAuthorizationCodeTokenRequest(GoogleNetHttpTransport.newTrustedTransport(), new JacksonFactory(), clientId, clientSecret, code, StringUtils.isNotBlank(redirectUri) ? redirectUri : defaultRedirectUri);
+                final GoogleAuthorizationCodeTokenRequest request = new GoogleAuthorizationCodeTokenRequest(HttpTransports.trusted(), HttpTransports.jsonFactory(), clientId, clientSecret, code, StringUtils.isNotBlank(redirectUri) ? redirectUri : defaultRedirectUri);
+                request.setRequestInitializer(new DeadlineRequestInitializer(null));
                 validToken = new ValidToken(request.execute());
             } catch (HttpResponseException e) {
                 error = String.format("Invalid response when try to generate code [%s]", e.getContent() != null ? e.getContent() : e.getMessage());
@@ -115,6 +135,7 @@ public class GoogleClient {
         String error = null;
         ErrorCode errorType = ErrorCode.API;
         boolean permanentException = true;
+        boolean invalidCredentials = false;
 
         if (StringUtils.isBlank(refreshToken)) {
             error = "Invalid refresh token: null";
@@ -122,10 +143,14 @@ public class GoogleClient {
         }
 
         final ValidToken validToken = new ValidToken(originalToken, refreshToken, expirationTime);
+        // token refreshes have their own slots, so they are not starved by the operations waiting for them
+        final Bulkhead.Permit permit = validToken.isExpired() && authBulkhead != null ? authBulkhead.acquire() : null;
         try {
             if (validToken.isExpired()) {
                 try {
-                    final GoogleRefreshTokenRequest request = new GoogleRefreshTokenRequest(GoogleNetHttpTransport.newTrustedTransport(), new JacksonFactory(), validToken.getRefreshToken(), clientId, clientSecret);
+                    Deadline.checkIo("token");
+                    final GoogleRefreshTokenRequest request = new GoogleRefreshTokenRequest(HttpTransports.trusted(), HttpTransports.jsonFactory(), validToken.getRefreshToken(), clientId, clientSecret);
+                    request.setRequestInitializer(new DeadlineRequestInitializer(null));
                     validToken.updateToken(request.execute());
                     logger.info(String.format("Token regenerated for user [%s]", userId));
                 } catch (HttpResponseException e) {
@@ -134,23 +159,93 @@ public class GoogleClient {
                     if(e.getStatusCode() < 400 || e.getStatusCode() >= 500) {
                         permanentException = false;
                     }
+                    invalidCredentials = isInvalidGrant(e);
                 } catch (Exception e) {
                     error = String.format("Error renewing the token [%s]", e.getMessage());
                     errorType = ErrorCode.API;
+                    // the request can be retried with a new deadline
+                    permanentException = !Deadline.isTimeout(e);
                 }
             }
         } catch (Exception e) {
             error = String.format("Error getting the token [%s]", e.getMessage());
             errorType = ErrorCode.API;
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
         }
 
         if(StringUtils.isBlank(error)){
             return validToken.toJson();
+        } else if(invalidCredentials) {
+            throw EndpointException.permanent(errorType, error, Json.map().set(PROPERTY_REASON, REASON_INVALID_CREDENTIALS));
         } else {
             throw EndpointException.exception(errorType, error, permanentException);
         }
 	}
 
+    /**
+     * Checks if the refresh token was rejected by Google, based on the OAuth error code of the response
+     */
+    private static boolean isInvalidGrant(HttpResponseException e) {
+        if (e instanceof TokenResponseException && ((TokenResponseException) e).getDetails() != null) {
+            final String code = ((TokenResponseException) e).getDetails().getError();
+            return "invalid_grant".equals(code) || "unauthorized_client".equals(code) || "invalid_client".equals(code);
+        }
+        return e.getStatusCode() == 401;
+    }
+
+    /**
+     * @param ex exception thrown when checking the token of a user
+     * @return true if the exception was caused by credentials rejected by Google
+     */
+    public static boolean isInvalidCredentials(Exception ex) {
+        return ex instanceof EndpointException && ((EndpointException) ex).getAdditionalInfo() != null &&
+                REASON_INVALID_CREDENTIALS.equals(((EndpointException) ex).getAdditionalInfo().string(PROPERTY_REASON));
+    }
+
+    /**
+     * Checks the error returned by the Drive API. Only the reasons of the error body are used, a 401 without
+     * them (like one from a proxy) does not mean the credentials are invalid.
+     *
+     * @param e error returned by Google
+     * @return true if the request failed because the token of the user was rejected
+     */
+    public static boolean isCredentialsError(HttpResponseException e) {
+        if (e == null || StringUtils.isBlank(e.getContent())) {
+            return false;
+        }
+        final Json body;
+        try {
+            body = Json.parse(e.getContent());
+        } catch (Exception ex) {
+            return false;
+        }
+        final Object error = body.object("error");
+        if (error instanceof String) {
+            // errors of the OAuth endpoints
+            return "invalid_grant".equals(error);
+        }
+        if (!(error instanceof Map) && !(error instanceof Json)) {
+            return false;
+        }
+        final Json details = body.json("error");
+        if ("UNAUTHENTICATED".equals(details.string("status"))) {
+            return true;
+        }
+        final List<Json> errors = details.jsons("errors");
+        if (errors != null) {
+            for (Json item : errors) {
+                final String reason = item.string(PROPERTY_REASON);
+                if ("authError".equals(reason) || REASON_INVALID_CREDENTIALS.equals(reason)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public void revokeTokens(String token, String refreshToken){
         try {
             String tokenToRevoke = refreshToken;
@@ -158,7 +253,7 @@ public class GoogleClient {
                 tokenToRevoke = token;
             }
             if(StringUtils.isNotBlank(tokenToRevoke)){
-                final HttpRequestFactory factory = HTTP_TRANSPORT.createRequestFactory();
+                final HttpRequestFactory factory = HttpTransports.trusted().createRequestFactory(new DeadlineRequestInitializer(null));
                 final GenericUrl url = new GenericUrl("https://accounts.google.com/o/oauth2/revoke?token=" + tokenToRevoke);
                 final HttpRequest request = factory.buildGetRequest(url);
                 final HttpResponse response = request.execute();
@@ -175,7 +270,15 @@ public class GoogleClient {
         if (! this.services.contains(ServiceType.OAUTH_2)) {
             throw EndpointException.permanent(ErrorCode.CLIENT, "Authentication service (OAuth 2 API) was not defined as valid service");
         }
-        return new GoogleAuthenticationService(application, token);
+        // clients are reused while the token does not change
+        synchronized (authenticationServices) {
+            GoogleAuthenticationService service = authenticationServices.get(token);
+            if (service == null) {
+                service = new GoogleAuthenticationService(application, token);
+                authenticationServices.put(token, service);
+            }
+            return service;
+        }
     }
 
     public GoogleDriveService getService(String userId, String token, GoogleDriveEndpoint endpoint) throws PermanentException {
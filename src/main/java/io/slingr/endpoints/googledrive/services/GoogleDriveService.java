@@ -1,18 +1,30 @@
 package io.slingr.endpoints.googledrive.services;
 
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.FileContent;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.json.GenericJson;
 import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveRequest;
 import com.google.api.services.drive.GenericGoogleDriveService;
+import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.GeneratedIds;
+import com.google.api.services.drive.model.TeamDrive;
+import com.google.api.services.drive.model.TeamDriveList;
 import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
 import io.slingr.endpoints.googledrive.GoogleDriveEndpoint;
 import io.slingr.endpoints.googledrive.services.entities.ApiException;
+import io.slingr.endpoints.googledrive.services.utils.Deadline;
+import io.slingr.endpoints.googledrive.services.utils.HttpTransports;
+import io.slingr.endpoints.googledrive.services.utils.Tracer;
 import io.slingr.endpoints.utils.Json;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
@@ -21,9 +33,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>Service class that interacts with the Google Drive API
@@ -35,10 +48,16 @@ public class GoogleDriveService {
     private static final Logger logger = Logger.getLogger(GoogleDriveService.class);
 
     public static final String EXPIRATION_TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat(EXPIRATION_TIME_FORMAT);
+    public static final String ARTIFACT_FIELDS = "id, name, mimeType, size, version, modifiedTime";
+    public static final String EXPORT_FIELDS = ARTIFACT_FIELDS + ", exportLinks";
+    // files bigger than this can not be exported with files.export
+    public static final long EXPORT_API_LIMIT = 10L * 1024 * 1024;
+    private static final String CONTENT_FIELDS = "id, parents, name, md5Checksum, size";
 
     private final String userId;
     private final GenericGoogleDriveService service;
+    // client for media transfers, so they do not share connections with metadata requests
+    private final GenericGoogleDriveService mediaService;
     private final GoogleDriveEndpoint endpoint;
 
     public GoogleDriveService(String userId, String applicationName, String token, GoogleDriveEndpoint endpoint) {
@@ -51,8 +70,11 @@ public class GoogleDriveService {
         }
 
         final GenericGoogleDriveService service;
+        final GenericGoogleDriveService mediaService;
         try {
             service = new GenericGoogleDriveService(applicationName, token);
+            final HttpTransport transfers = HttpTransports.transfers();
+            mediaService = transfers == HttpTransports.trusted() ? service : new GenericGoogleDriveService(applicationName, token, transfers);
         } catch (HttpResponseException e) {
             logger.info(String.format("Invalid response when try to build the Google Drive client [%s]", e.getContent() != null ? e.getContent() : e.getMessage()));
             throw ApiException.generate("Invalid response when try to build the Google Drive client", e);
@@ -62,51 +84,406 @@ public class GoogleDriveService {
             throw ApiException.generate(cm, e);
         }
         this.service = service;
+        this.mediaService = mediaService;
         this.endpoint = endpoint;
     }
 
     public String uploadFile(InputStream is, String name, String mimeType, String folderId, String originalMimeType) throws IOException {
+        return createFile(is, name, mimeType, folderId, originalMimeType).getId();
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public File createFile(InputStream is, String name, String mimeType, String folderId, String originalMimeType) throws IOException {
+        return createFile(is, name, mimeType, folderId, originalMimeType, null);
+    }
+
+    /**
+     * Creates a file with the given content
+     *
+     * @param fileId id for the new file, generated with {@link #generateIds(int)}. If it is null an id
+     *               from the pool of the user is used, so the id is known before the content is sent,
+     *               or Drive assigns it if the pool is empty.
+     */
+    public File createFile(InputStream is, String name, String mimeType, String folderId, String originalMimeType, String fileId) throws IOException {
         File fileMetadata = new File();
+        fileMetadata.setId(StringUtils.isNotBlank(fileId) ? fileId : pooledId());
         fileMetadata.setName(name);
         fileMetadata.setMimeType(mimeType);
         if (folderId != null) {
             fileMetadata.setParents(Collections.singletonList(folderId));
         }
-        InputStreamContent mediaContent = new InputStreamContent(originalMimeType, is);
-        File file = service.files().create(fileMetadata, mediaContent)
-                .setFields("id, parents")
-                .setSupportsTeamDrives(true)
+        Deadline.check("transfer");
+        InputStreamContent mediaContent = new InputStreamContent(originalMimeType, Deadline.guard(is));
+        try (Tracer.Span span = Tracer.span("drive.upload")) {
+            final File stored = mediaService.files().create(fileMetadata, mediaContent)
+                    .setFields(CONTENT_FIELDS)
+                    .setSupportsTeamDrives(true)
+                    .execute();
+            invalidateQueries();
+            return stored;
+        } catch (IOException e) {
+            Deadline.recordIfTimeout(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the content of an existing file, which creates a new revision of it
+     */
+    public File updateFileContent(String fileId, InputStream is, String originalMimeType) throws IOException {
+        Deadline.check("transfer");
+        InputStreamContent mediaContent = new InputStreamContent(originalMimeType, Deadline.guard(is));
+        try {
+            final File stored = mediaService.files().update(fileId, new File(), mediaContent)
+                    .setFields(CONTENT_FIELDS)
+                    .setSupportsTeamDrives(true)
+                    .execute();
+            invalidateQueries();
+            return stored;
+        } catch (IOException e) {
+            Deadline.recordIfTimeout(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Lists the files of a folder with the fields needed to compare their content
+     */
+    public List<File> listContentHashes(String folderId) throws IOException {
+        return listFolder(folderId, CONTENT_FIELDS);
+    }
+
+    /**
+     * Generates ids that can be used to create files
+     */
+    public List<String> generateIds(int count) throws IOException {
+        Deadline.check("metadata");
+        final GeneratedIds generated = service.files().generateIds()
+                .setCount(count)
+                .setSpace("drive")
                 .execute();
-        return file.getId();
+        return generated.getIds() != null ? generated.getIds() : Collections.emptyList();
+    }
+
+    /**
+     * Takes ids from the pool of the user
+     *
+     * @param count number of ids
+     * @return ids that can be used to create files
+     */
+    public List<String> takeIds(int count) throws IOException {
+        final FileIdPool pool = endpoint != null ? endpoint.getFileIdPool() : null;
+        if (pool == null || StringUtils.isBlank(userId)) {
+            return generateIds(count);
+        }
+        return pool.take(userId, count, this::generateIds);
+    }
+
+    /**
+     * @return an id from the pool of the user, or null to let Drive assign it when the pool is empty
+     */
+    private String pooledId() {
+        final FileIdPool pool = endpoint != null ? endpoint.getFileIdPool() : null;
+        if (pool == null || StringUtils.isBlank(userId)) {
+            return null;
+        }
+        return pool.poll(userId, this::generateIds);
+    }
+
+    /**
+     * @return true if the url is the one of {@code files.create}
+     */
+    private static boolean isFileCreate(String url) {
+        if (url == null) {
+            return false;
+        }
+        final int query = url.indexOf('?');
+        final String path = StringUtils.removeEnd(query >= 0 ? url.substring(0, query) : url, "/");
+        return path.endsWith("/drive/v3/files");
     }
 
     public File fileMetadata(String fileId) throws IOException {
-        return service.files()
-                .get(fileId)
-                .setSupportsTeamDrives(true)
-                .execute();
+        Deadline.check("metadata");
+        try (Tracer.Span span = Tracer.span("drive.fileMetadata")) {
+            return hedged("files.get", () -> service.files()
+                    .get(fileId)
+                    .setSupportsTeamDrives(true)
+                    .execute());
+        }
+    }
+
+    public File fileMetadata(String fileId, String fields) throws IOException {
+        Deadline.check("metadata");
+        try (Tracer.Span span = Tracer.span("drive.fileMetadata")) {
+            return hedged("files.get", () -> service.files()
+                    .get(fileId)
+                    .setFields(fields)
+                    .setSupportsTeamDrives(true)
+                    .execute());
+        }
+    }
+
+    /**
+     * Runs a read through the hedger when hedging is enabled. The call is run once per attempt, so it
+     * must build its own request.
+     */
+    private <T> T hedged(String operation, RequestHedger.Call<T> call) throws IOException {
+        final RequestHedger hedger = endpoint != null ? endpoint.getHedger() : null;
+        return hedger != null ? hedger.execute(operation, call) : call.call();
+    }
+
+    /**
+     * Lists the direct children of a folder, following all the pages
+     *
+     * @param folderId id of the folder
+     * @return children of the folder, not trashed
+     * @throws IOException if one of the pages can not be fetched
+     */
+    public List<File> listChildren(String folderId) throws IOException {
+        return listFolder(folderId, EXPORT_FIELDS);
+    }
+
+    /**
+     * Lists the direct children of a folder with the given fields, following all the pages
+     *
+     * @param folderId id of the folder
+     * @param fields fields of each file
+     * @return children of the folder, not trashed
+     * @throws IOException if one of the pages can not be fetched
+     */
+    public List<File> listChildren(String folderId, String fields) throws IOException {
+        return listFolder(folderId, fields);
+    }
+
+    private List<File> listFolder(String folderId, String fields) throws IOException {
+        final List<File> children = new ArrayList<>();
+        String pageToken = null;
+        do {
+            Deadline.check("list");
+            final FileList page = service.files().list()
+                    .setQ(String.format("'%s' in parents and trashed = false", folderId.replace("'", "\\'")))
+                    .setFields("nextPageToken, files(" + fields + ")")
+                    .setPageSize(1000)
+                    .setSupportsTeamDrives(true)
+                    .setIncludeTeamDriveItems(true)
+                    .setPageToken(pageToken)
+                    .execute();
+            if (page.getFiles() != null) {
+                children.addAll(page.getFiles());
+            }
+            pageToken = page.getNextPageToken();
+        } while (StringUtils.isNotBlank(pageToken));
+        return children;
+    }
+
+    /**
+     * Lists the shared drives of the user, following all the pages
+     */
+    public List<TeamDrive> listTeamDrives() throws IOException {
+        final List<TeamDrive> drives = new ArrayList<>();
+        String pageToken = null;
+        do {
+            Deadline.check("list");
+            final TeamDriveList page = service.teamdrives().list()
+                    .setFields("nextPageToken, teamDrives(id, name)")
+                    .setPageSize(100)
+                    .setPageToken(pageToken)
+                    .execute();
+            if (page.getTeamDrives() != null) {
+                drives.addAll(page.getTeamDrives());
+            }
+            pageToken = page.getNextPageToken();
+        } while (StringUtils.isNotBlank(pageToken));
+        return drives;
+    }
+
+    /**
+     * Searches files in a shared drive, or in My Drive when the drive id is null
+     *
+     * @return one page of results, with the files converted to JSON
+     */
+    public Json searchFiles(String driveId, String q, String orderBy, String fields, int pageSize, String pageToken) throws IOException {
+        Deadline.check("list");
+        try (Tracer.Span span = Tracer.span("drive.search").tag("driveId", driveId)) {
+            final Drive.Files.List request = service.files().list()
+                    .setQ(q)
+                    .setOrderBy(orderBy)
+                    .setFields("nextPageToken, files(" + fields + ")")
+                    .setPageSize(pageSize)
+                    .setPageToken(pageToken)
+                    .setSupportsTeamDrives(true);
+            if (driveId != null) {
+                request.setCorpora("teamDrive").setTeamDriveId(driveId).setIncludeTeamDriveItems(true);
+            } else {
+                request.setCorpora("user");
+            }
+            return getJson(request.execute());
+        }
     }
 
     public void downloadFile(String fileId, OutputStream out) throws IOException {
-        service.files().get(fileId).executeMediaAndDownloadTo(out);
+        Deadline.check("transfer");
+        try (Tracer.Span span = Tracer.span("drive.download")) {
+            mediaService.files().get(fileId).executeMediaAndDownloadTo(Deadline.guard(out));
+        }
     }
 
     public void downloadExportLink(String url, OutputStream out) throws IOException {
-        service.getRequestFactory().buildGetRequest(new GenericUrl(url)).execute().download(out);
+        Deadline.check("transfer");
+        mediaService.getRequestFactory().buildGetRequest(new GenericUrl(url)).execute().download(Deadline.guard(out));
     }
 
     public void exportFile(String fileId, String mimeType, OutputStream out) throws IOException {
-        service.files().export(fileId, mimeType).executeAndDownloadTo(out);
+        Deadline.check("transfer");
+        mediaService.files().export(fileId, mimeType).executeAndDownloadTo(Deadline.guard(out));
     }
 
+    /**
+     * Exports a Google Docs file to the given format. The format is looked up in the export links of the
+     * file, and the content is fetched with files.export unless the file is known to be over its limit,
+     * in which case the export link is used.
+     *
+     * @param file metadata of the file, with the fields in {@link #EXPORT_FIELDS}
+     * @param targetMimeType format of the export
+     * @param out stream where the exported content is written
+     * @throws IOException if the file can not be exported
+     */
+    public void export(File file, String targetMimeType, OutputStream out) throws IOException {
+        try (Tracer.Span span = Tracer.span("drive.export").tag("mimeType", targetMimeType)) {
+            exportWithFallback(file, targetMimeType, out);
+        }
+    }
+
+    private void exportWithFallback(File file, String targetMimeType, OutputStream out) throws IOException {
+        final Map<String, String> links = file.getExportLinks();
+        if (links != null && !links.isEmpty() && !links.containsKey(targetMimeType)) {
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, String.format("File [%s] can not be exported as [%s], available formats %s",
+                    file.getId(), targetMimeType, links.keySet())).returnCode(400);
+        }
+        final String link = links != null ? links.get(targetMimeType) : null;
+        if (link != null && file.getSize() != null && file.getSize() > EXPORT_API_LIMIT) {
+            downloadExportLink(link, out);
+            return;
+        }
+        try {
+            exportFile(file.getId(), targetMimeType, out);
+        } catch (GoogleJsonResponseException e) {
+            if (link == null || !hasReason(e, "exportSizeLimitExceeded")) {
+                throw e;
+            }
+            logger.info(String.format("File [%s] is too big for files.export, using the export link", file.getId()));
+            downloadExportLink(link, out);
+        }
+    }
+
+    private static boolean hasReason(GoogleJsonResponseException e, String reason) {
+        if (e.getDetails() != null && e.getDetails().getErrors() != null) {
+            for (GoogleJsonError.ErrorInfo error : e.getDetails().getErrors()) {
+                if (reason.equals(error.getReason())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a GET request. Identical requests of the same user that are in flight at the same time
+     * share a single call to Google, and searches of files are served from the query cache when
+     * their results did not change.
+     */
     public Json getRequest(String url, Json params, String functionId) {
+        final RequestCoalescer coalescer = endpoint != null ? endpoint.getCoalescer() : null;
+        if (coalescer == null || StringUtils.isBlank(userId)) {
+            return executeGetRequest(url, params, functionId);
+        }
         try {
-            GenericGoogleDriveService.GenericRequests.GetRequest request = service.generic().get(url);
-            applyParams(request, params);
-            final GenericJson json = request.execute();
-            final Json response = getJson(json);
+            final QueryCache queryCache = endpoint.getQueryCache();
+            if (queryCache != null && QueryCache.isCacheable(url, params)) {
+                return queryCache.get(userId, url, params, () -> coalescedGetRequest(coalescer, url, params, functionId), changesFeed());
+            }
+            return coalescedGetRequest(coalescer, url, params, functionId);
+        } catch (EndpointException e) {
+            return e.toJson(true);
+        } catch (Exception e) {
+            return processException(e);
+        }
+    }
 
-            logger.info(String.format("Google response [%s]", response));
+    private Json coalescedGetRequest(RequestCoalescer coalescer, String url, Json params, String functionId) throws IOException {
+        return coalescer.execute(RequestCoalescer.key("get", userId, url, params),
+                () -> executeGetRequest(url, params, functionId), RequestCoalescer::copy);
+    }
+
+    /**
+     * @return access to the changes feed of the user
+     */
+    public QueryCache.ChangesFeed changesFeed() {
+        return new QueryCache.ChangesFeed() {
+            @Override
+            public String startPageToken() throws IOException {
+                Deadline.check("changes");
+                return service.changes().getStartPageToken()
+                        .setSupportsTeamDrives(true)
+                        .execute()
+                        .getStartPageToken();
+            }
+
+            @Override
+            public ChangeList changes(String pageToken, String fields) throws IOException {
+                Deadline.check("changes");
+                return service.changes().list(pageToken)
+                        .setFields(fields)
+                        .setPageSize(1000)
+                        .setSupportsTeamDrives(true)
+                        .setIncludeTeamDriveItems(true)
+                        .execute();
+            }
+        };
+    }
+
+    /**
+     * Drops the cached searches of the user after a mutation, so the user reads its own writes
+     */
+    private void invalidateQueries() {
+        final QueryCache queryCache = endpoint != null ? endpoint.getQueryCache() : null;
+        if (queryCache != null) {
+            queryCache.invalidateUser(userId);
+        }
+    }
+
+    private Json executeGetRequest(String url, Json params, String functionId) {
+        try {
+            final String resource = FieldMaskPolicy.resource(url);
+            final FieldMaskPolicy policy = fieldMaskPolicy();
+            final boolean fieldsRequested = params != null && params.contains("fields");
+            final String mask = policy != null && !fieldsRequested ? policy.maskFor(resource) : null;
+            // a few requests ask for the whole resource, and are trimmed to the mask, to know how many bytes the mask saves
+            final boolean sampled = mask != null && policy.sampleUnmasked(resource);
+            final RequestHedger.Call<GenericJson> call = () -> {
+                GenericGoogleDriveService.GenericRequests.GetRequest request = service.generic().get(url);
+                applyParams(request, params);
+                if (mask != null) {
+                    request.setFields(sampled ? FieldMaskPolicy.ALL_FIELDS : mask);
+                }
+                return request.execute();
+            };
+            // media downloads are not hedged, only metadata reads
+            final GenericJson json = resource == null || (params != null && params.contains("alt")) ? call.call() : hedged(resource, call);
+            Json response = getJson(json);
+
+            String body = response.toString();
+            if (policy != null && !fieldsRequested) {
+                policy.observe(resource, response, body.length(), mask != null && !sampled);
+            }
+            if (sampled) {
+                response = FieldMaskPolicy.project(response, mask);
+                body = response.toString();
+            }
+            logger.info(String.format("Google response [%s]", body));
             return response;
         } catch (EndpointException e) {
             return e.toJson(true);
@@ -118,16 +495,26 @@ public class GoogleDriveService {
     }
 
     public void getRequestAndDownload(String url, Json params, OutputStream out, String functionId) throws IOException {
-        GenericGoogleDriveService.GenericRequests.GetRequest request = service.generic().get(url);
+        GenericGoogleDriveService.GenericRequests.GetRequest request = mediaService.generic().get(url);
         applyParams(request, params);
-        request.executeAndDownloadTo(out);
+        Deadline.check("transfer");
+        request.executeAndDownloadTo(Deadline.guard(out));
     }
 
     public Json postRequest(String url, Json params, Json content, String functionId) {
         try {
+            if (content != null && !content.contains("id") && isFileCreate(url)) {
+                // creates of files and folders get an id from the pool, on a copy so the content of the caller is
+                // not changed. A new call gets a new id, only a create sent again with the same id is rejected by Drive.
+                final String id = pooledId();
+                if (id != null) {
+                    content = RequestCoalescer.copy(content).set("id", id);
+                }
+            }
             GenericGoogleDriveService.GenericRequests.PostRequest request = service.generic().post(url, content);
             applyParams(request, params);
             final GenericJson json = request.execute();
+            invalidateQueries();
             final Json response = getJson(json);
 
             logger.info(String.format("Google response [%s]", response));
@@ -146,6 +533,7 @@ public class GoogleDriveService {
             GenericGoogleDriveService.GenericRequests.PutRequest request = service.generic().put(url, content);
             applyParams(request, params);
             final GenericJson json = request.execute();
+            invalidateQueries();
             final Json response = getJson(json);
 
             logger.info(String.format("Google response [%s]", response));
@@ -164,6 +552,7 @@ public class GoogleDriveService {
             GenericGoogleDriveService.GenericRequests.PatchRequest request = service.generic().patch(url, content);
             applyParams(request, params);
             final GenericJson json = request.execute();
+            invalidateQueries();
             final Json response = getJson(json);
 
             logger.info(String.format("Google response [%s]", response));
@@ -182,6 +571,7 @@ public class GoogleDriveService {
             GenericGoogleDriveService.GenericRequests.DeleteRequest request = service.generic().delete(url);
             applyParams(request, params);
             final GenericJson json = request.execute();
+            invalidateQueries();
             final Json response = getJson(json);
 
             logger.info(String.format("Google response [%s]", response));
@@ -203,6 +593,10 @@ public class GoogleDriveService {
         }
     }
 
+    private FieldMaskPolicy fieldMaskPolicy() {
+        return endpoint != null ? endpoint.getFieldMaskPolicy() : null;
+    }
+
     public Json getJson(GenericJson genericJson) {
         final Json response = Json.fromMap(genericJson);
         response.traverse(new Json.Visitor() {
@@ -218,6 +612,7 @@ public class GoogleDriveService {
     }
 
     private static Json processException(Exception e) {
+        Deadline.recordIfTimeout(e);
         return processException(logger, e);
     }
 
@@ -0,0 +1,454 @@
+package io.slingr.endpoints.googledrive.services;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.User;
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.googledrive.services.utils.Deadline;
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>Walks a folder tree (like the root of My Drive or a shared drive) and aggregates an inventory:
+ * number of files and folders, total size, breakdown by mime type and owner, and the largest files.
+ *
+ * <p>Folders are listed in parallel by a bounded pool fed from a work queue, and the subfolders found
+ * are added to the queue. The aggregated inventory and the pending folders are saved as a checkpoint
+ * periodically and when the deadline of the request is about to pass, so the next call resumes the
+ * crawl instead of starting again. Files are added to the inventory only when the listing of their
+ * folder is complete, so a resumed crawl does not count them twice.
+ *
+ * <p>Each listing takes a permit of the metadata bulkhead while it runs, so a large crawl shares the
+ * slots with the rest of the requests instead of holding one for its whole duration. A folder whose
+ * listing is rejected by the bulkhead, or fails with an error that can go away like a rate limit or a
+ * timeout, goes back to the queue after a backoff. Only folders that can not be read (not found or
+ * without access), or that keep failing, are reported as errors.
+ */
+public class InventoryCrawler {
+
+    private static final Logger logger = LoggerFactory.getLogger(InventoryCrawler.class);
+
+    public static final String INVENTORY_FIELDS = "id, name, mimeType, size, quotaBytesUsed, owners(emailAddress)";
+    private static final int TOP_FILES = 20;
+    private static final int MAX_ERRORS = 100;
+    private static final long CHECKPOINT_INTERVAL = 10 * 1000;
+    // time kept to save the checkpoint and answer before the deadline passes
+    private static final long STOP_MARGIN = 5 * 1000;
+    private static final String SHARED_DRIVE_OWNER = "(shared drive)";
+    // listings of a folder that failed before it is reported as an error
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long MIN_BACKOFF = 500;
+    private static final long MAX_BACKOFF = 30 * 1000;
+
+    public interface Checkpoints {
+        Json load(String id);
+
+        void save(Json checkpoint);
+
+        void remove(String id);
+    }
+
+    private final GoogleDriveService service;
+    private final Checkpoints checkpoints;
+    private final Bulkhead bulkhead;
+    private final int concurrency;
+
+    public InventoryCrawler(GoogleDriveService service, Checkpoints checkpoints, Bulkhead bulkhead, int concurrency) {
+        this.service = service;
+        this.checkpoints = checkpoints;
+        this.bulkhead = bulkhead;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Crawls the folder tree, starting from the checkpoint of the job if there is one
+     *
+     * @param checkpointId id of the checkpoint of the job
+     * @param rootId id of the folder where the crawl starts
+     * @return the inventory, complete or partial
+     * @throws IOException if the crawl is interrupted
+     */
+    public Result crawl(String checkpointId, String rootId) throws IOException {
+        final Json checkpoint = checkpoints.load(checkpointId);
+        final Inventory inventory;
+        final Deque<String> pending = new ArrayDeque<>();
+        if (checkpoint != null && !checkpoint.isEmpty() && checkpoint.json("inventory") != null) {
+            inventory = Inventory.fromJson(checkpoint.json("inventory"));
+            final List<String> saved = checkpoint.strings("pending");
+            if (saved != null) {
+                pending.addAll(saved);
+            }
+            EndpointMetrics.increment("inventory.resumed");
+            logger.info(String.format("Inventory [%s] resumed with [%s] pending folders", checkpointId, pending.size()));
+        } else {
+            inventory = new Inventory();
+            pending.add(rootId);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        final CompletionService<Folder> completion = new ExecutorCompletionService<>(executor);
+        final Set<String> running = new HashSet<>();
+        // folders listed again when their backoff passes
+        final PriorityQueue<Retry> delayed = new PriorityQueue<>();
+        final Map<String, Integer> attempts = new HashMap<>();
+        long lastCheckpoint = System.currentTimeMillis();
+        try {
+            while (!pending.isEmpty() || !running.isEmpty() || !delayed.isEmpty()) {
+                while (!delayed.isEmpty() && delayed.peek().at <= System.currentTimeMillis()) {
+                    pending.add(delayed.poll().folderId);
+                }
+                while (running.size() < concurrency && !pending.isEmpty() && !isStopping()) {
+                    final String folderId = pending.poll();
+                    running.add(folderId);
+                    completion.submit(Deadline.propagate(() -> list(folderId)));
+                }
+                if (running.isEmpty()) {
+                    if (isStopping()) {
+                        // the rest of the folders stay in the checkpoint
+                        break;
+                    }
+                    // only folders in backoff are left
+                    Thread.sleep(Math.max(1, Math.min(1000, delayed.peek().at - System.currentTimeMillis())));
+                    continue;
+                }
+                final Future<Folder> done = completion.poll(1, TimeUnit.SECONDS);
+                if (done != null) {
+                    final Folder folder = await(done);
+                    running.remove(folder.id);
+                    if (!folder.retry) {
+                        attempts.remove(folder.id);
+                        inventory.merge(folder.inventory);
+                        pending.addAll(folder.subfolders);
+                    } else if (folder.error == null) {
+                        // throttled or out of time, it does not count as a failed attempt
+                        delayed.add(new Retry(folder.id, System.currentTimeMillis() + backoff(0)));
+                    } else {
+                        final int attempt = attempts.merge(folder.id, 1, Integer::sum);
+                        if (attempt >= MAX_ATTEMPTS) {
+                            attempts.remove(folder.id);
+                            inventory.error(folder.id, folder.error);
+                        } else {
+                            delayed.add(new Retry(folder.id, System.currentTimeMillis() + backoff(attempt)));
+                        }
+                    }
+                }
+                if (System.currentTimeMillis() - lastCheckpoint > CHECKPOINT_INTERVAL) {
+                    save(checkpointId, rootId, inventory, pending, running, delayed);
+                    lastCheckpoint = System.currentTimeMillis();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            save(checkpointId, rootId, inventory, pending, running, delayed);
+            throw EndpointException.retryable(ErrorCode.GENERAL, "Interrupted while crawling the inventory");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (pending.isEmpty() && delayed.isEmpty()) {
+            checkpoints.remove(checkpointId);
+            return new Result(inventory, true, 0);
+        }
+        save(checkpointId, rootId, inventory, pending, running, delayed);
+        return new Result(inventory, false, pending.size() + delayed.size());
+    }
+
+    private Folder list(String folderId) {
+        final Folder folder = new Folder(folderId);
+        final Bulkhead.Permit permit;
+        try {
+            permit = bulkhead != null ? bulkhead.acquire() : null;
+        } catch (EndpointException e) {
+            // listed again later, when the bulkhead has room
+            EndpointMetrics.increment("inventory.throttled");
+            folder.retry = true;
+            return folder;
+        }
+        try (Bulkhead.Permit listing = permit) {
+            for (File file : service.listChildren(folderId, INVENTORY_FIELDS)) {
+                if (FolderArchiver.FOLDER_MIME_TYPE.equals(file.getMimeType())) {
+                    folder.subfolders.add(file.getId());
+                    folder.inventory.folders++;
+                } else {
+                    folder.inventory.add(file);
+                }
+            }
+            EndpointMetrics.increment("inventory.folders");
+        } catch (Exception e) {
+            logger.info(String.format("Folder [%s] could not be listed [%s]", folderId, e.getMessage()));
+            if (isPermanent(e)) {
+                // the folder is reported and the crawl goes on with the rest of the tree
+                folder.inventory.error(folderId, e.getMessage());
+            } else {
+                EndpointMetrics.increment("inventory.retried");
+                folder.retry = true;
+                // failures when the deadline is about to pass are not attempts of the folder
+                folder.error = isStopping() ? null : String.valueOf(e.getMessage());
+            }
+        }
+        return folder;
+    }
+
+    /**
+     * @return true if listing the folder again can not work, like when it was removed or the user lost access.
+     * Drive also answers rate limits with 403, those are retried.
+     */
+    private static boolean isPermanent(Exception e) {
+        if (!(e instanceof HttpResponseException)) {
+            return false;
+        }
+        final HttpResponseException response = (HttpResponseException) e;
+        return response.getStatusCode() == 404
+                || (response.getStatusCode() == 403 && !StringUtils.containsIgnoreCase(response.getContent(), "RateLimitExceeded"));
+    }
+
+    private static long backoff(int attempt) {
+        final long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(attempt, 10));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private void save(String checkpointId, String rootId, Inventory inventory, Deque<String> pending, Set<String> running, Collection<Retry> delayed) {
+        final List<String> folders = new ArrayList<>(running);
+        folders.addAll(pending);
+        for (Retry retry : delayed) {
+            folders.add(retry.folderId);
+        }
+        try {
+            checkpoints.save(Json.map()
+                    .set("_id", checkpointId)
+                    .set("rootId", rootId)
+                    .set("pending", folders)
+                    .set("inventory", inventory.toJson())
+                    .set("updatedAt", System.currentTimeMillis()));
+        } catch (Exception e) {
+            logger.warn(String.format("Checkpoint of inventory [%s] could not be saved [%s]", checkpointId, e.getMessage()));
+        }
+    }
+
+    private static boolean isStopping() {
+        final Deadline deadline = Deadline.current();
+        return deadline != null && deadline.remainingMillis() < STOP_MARGIN;
+    }
+
+    private static Folder await(Future<Folder> future) throws InterruptedException, IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // listing errors are caught by the task, so this is a bug or an error of the runtime
+            throw new IOException(e.getCause() != null ? e.getCause().getMessage() : e.getMessage(), e.getCause());
+        }
+    }
+
+    private static final class Folder {
+        private final String id;
+        private final Inventory inventory = new Inventory();
+        private final List<String> subfolders = new ArrayList<>();
+        private boolean retry = false;
+        // error of a failed listing that counts as an attempt
+        private String error;
+
+        private Folder(String id) {
+            this.id = id;
+        }
+    }
+
+    private static final class Retry implements Comparable<Retry> {
+        private final String folderId;
+        private final long at;
+
+        private Retry(String folderId, long at) {
+            this.folderId = folderId;
+            this.at = at;
+        }
+
+        @Override
+        public int compareTo(Retry other) {
+            return Long.compare(at, other.at);
+        }
+    }
+
+    public static final class Result {
+        private final Inventory inventory;
+        private final boolean complete;
+        private final int pendingFolders;
+
+        private Result(Inventory inventory, boolean complete, int pendingFolders) {
+            this.inventory = inventory;
+            this.complete = complete;
+            this.pendingFolders = pendingFolders;
+        }
+
+        public Inventory getInventory() {
+            return inventory;
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public int getPendingFolders() {
+            return pendingFolders;
+        }
+    }
+
+    /**
+     * Aggregated inventory of a folder tree
+     */
+    public static final class Inventory {
+        private long files = 0;
+        private long folders = 0;
+        private long totalSize = 0;
+        private final Map<String, long[]> mimeTypes = new TreeMap<>();
+        private final Map<String, long[]> owners = new TreeMap<>();
+        private final List<Json> largest = new ArrayList<>();
+        private final List<Json> errors = new ArrayList<>();
+
+        private void add(File file) {
+            final long size = file.getSize() != null ? file.getSize() : file.getQuotaBytesUsed() != null ? file.getQuotaBytesUsed() : 0;
+            files++;
+            totalSize += size;
+            count(mimeTypes, file.getMimeType(), 1, size);
+            if (file.getOwners() != null && !file.getOwners().isEmpty()) {
+                for (User owner : file.getOwners()) {
+                    count(owners, owner.getEmailAddress(), 1, size);
+                }
+            } else {
+                count(owners, SHARED_DRIVE_OWNER, 1, size);
+            }
+            addLargest(Json.map()
+                    .set("id", file.getId())
+                    .set("name", file.getName())
+                    .set("mimeType", file.getMimeType())
+                    .set("size", size));
+        }
+
+        private void error(String folderId, String message) {
+            if (errors.size() < MAX_ERRORS) {
+                errors.add(Json.map().set("folderId", folderId).set("error", message));
+            }
+        }
+
+        private void merge(Inventory other) {
+            files += other.files;
+            folders += other.folders;
+            totalSize += other.totalSize;
+            for (Map.Entry<String, long[]> entry : other.mimeTypes.entrySet()) {
+                count(mimeTypes, entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+            }
+            for (Map.Entry<String, long[]> entry : other.owners.entrySet()) {
+                count(owners, entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+            }
+            for (Json file : other.largest) {
+                addLargest(file);
+            }
+            for (Json error : other.errors) {
+                if (errors.size() < MAX_ERRORS) {
+                    errors.add(error);
+                }
+            }
+        }
+
+        private void addLargest(Json file) {
+            final long size = file.longInteger("size");
+            if (largest.size() >= TOP_FILES && largest.get(largest.size() - 1).longInteger("size") >= size) {
+                return;
+            }
+            int position = largest.size();
+            while (position > 0 && largest.get(position - 1).longInteger("size") < size) {
+                position--;
+            }
+            largest.add(position, file);
+            if (largest.size() > TOP_FILES) {
+                largest.remove(largest.size() - 1);
+            }
+        }
+
+        private static void count(Map<String, long[]> counters, String key, long count, long size) {
+            final long[] counter = counters.computeIfAbsent(key != null ? key : "-", k -> new long[2]);
+            counter[0] += count;
+            counter[1] += size;
+        }
+
+        public Json summary() {
+            return Json.map()
+                    .set("files", files)
+                    .set("folders", folders)
+                    .set("totalSize", totalSize)
+                    .set("errors", errors.size());
+        }
+
+        public Json toJson() {
+            return summary()
+                    .set("mimeTypes", breakdown(mimeTypes))
+                    .set("owners", breakdown(owners))
+                    .set("largestFiles", largest)
+                    .set("errors", errors);
+        }
+
+        /**
+         * Writes the report section by section, so it can be streamed
+         */
+        public void writeReport(Writer writer) throws IOException {
+            writer.write("{\"summary\":");
+            writer.write(summary().toString());
+            writer.write(",\"mimeTypes\":");
+            writer.write(breakdown(mimeTypes).toString());
+            writer.write(",\"owners\":");
+            writer.write(breakdown(owners).toString());
+            writer.write(",\"largestFiles\":");
+            writer.write(Json.fromList(largest).toString());
+            writer.write(",\"errors\":");
+            writer.write(Json.fromList(errors).toString());
+            writer.write("}");
+            writer.flush();
+        }
+
+        private static Json breakdown(Map<String, long[]> counters) {
+            final Json json = Json.map();
+            for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+                json.set(entry.getKey(), Json.map().set("count", entry.getValue()[0]).set("size", entry.getValue()[1]));
+            }
+            return json;
+        }
+
+        public static Inventory fromJson(Json json) {
+            final Inventory inventory = new Inventory();
+            inventory.files = value(json.longInteger("files"));
+            inventory.folders = value(json.longInteger("folders"));
+            inventory.totalSize = value(json.longInteger("totalSize"));
+            restore(json.json("mimeTypes"), inventory.mimeTypes);
+            restore(json.json("owners"), inventory.owners);
+            final List<Json> largest = json.jsons("largestFiles");
+            if (largest != null) {
+                inventory.largest.addAll(largest);
+            }
+            final List<Json> errors = json.jsons("errors");
+            if (errors != null) {
+                inventory.errors.addAll(errors);
+            }
+            return inventory;
+        }
+
+        private static void restore(Json breakdown, Map<String, long[]> counters) {
+            if (breakdown != null) {
+                for (String key : breakdown.keys()) {
+                    final Json counter = breakdown.json(key);
+                    count(counters, key, value(counter.longInteger("count")), value(counter.longInteger("size")));
+                }
+            }
+        }
+
+        private static long value(Long value) {
+            return value != null ? value : 0;
+        }
+    }
+}
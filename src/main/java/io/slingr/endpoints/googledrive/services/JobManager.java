@@ -0,0 +1,513 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.googledrive.services.utils.Deadline;
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>Runs long operations as jobs in background, so they are not bound to the timeout of a function call
+ *
+ * <p>Jobs are stored in the data store with their parameters, progress and checkpoint, and run on a
+ * bounded executor in slices: each slice runs with a deadline, and the task saves a checkpoint and
+ * returns when the deadline is about to pass, so the next slice continues from there. The instance
+ * running a job holds a lease on it that is renewed while the job is alive. An index of the active
+ * jobs is kept in the data store, and jobs whose lease expired (because the endpoint was restarted or
+ * the instance went away) are taken again by any instance and resume from their checkpoint. When the
+ * endpoint is stopped, the jobs release their lease right away so they do not wait for it to expire.
+ */
+public class JobManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(JobManager.class);
+
+    public static final String STATUS_QUEUED = "queued";
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_COMPLETED = "completed";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_CANCELLED = "cancelled";
+
+    private static final String JOB_PREFIX = "job-";
+    private static final String INDEX_ID = "jobs-index";
+    private static final long SLICE_DURATION = 5 * 60 * 1000;
+    private static final long LEASE_DURATION = 2 * 60 * 1000;
+    private static final long HEARTBEAT_INTERVAL = 30 * 1000;
+    private static final int INDEX_ATTEMPTS = 3;
+    // time given to running jobs to release their lease when the endpoint stops
+    private static final long STOP_TIMEOUT = 10 * 1000;
+
+    public interface Store {
+        Json find(String id);
+
+        void save(Json record);
+    }
+
+    public interface Task {
+        /**
+         * Runs a slice of the job. The deadline of the slice is set in the current thread.
+         *
+         * @param job job to run, with its parameters and last checkpoint
+         * @return result of the job, or null if it did not finish and has to run another slice
+         * @throws Exception if the job failed
+         */
+        Json run(Job job) throws Exception;
+    }
+
+    public interface Listener {
+        void finished(String userId, Json job);
+    }
+
+    /**
+     * Job being run by this instance
+     */
+    public final class Job {
+        private final String id;
+        private final String userId;
+        private final String type;
+        private final Json params;
+        private volatile Json checkpoint;
+        private volatile Future<?> future;
+        private volatile boolean started = false;
+        private volatile boolean cancelRequested = false;
+
+        private Job(Json record) {
+            this.id = record.string("jobId");
+            this.userId = record.string("userId");
+            this.type = record.string("type");
+            this.params = record.json("params") != null ? record.json("params") : Json.map();
+            this.checkpoint = record.json("checkpoint");
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public Json getParams() {
+            return params;
+        }
+
+        /**
+         * @return last checkpoint saved by the job, or null if it did not save one yet
+         */
+        public Json getCheckpoint() {
+            return checkpoint;
+        }
+
+        /**
+         * Saves the checkpoint and the progress of the job, so it resumes from there if it is restarted
+         */
+        public void checkpoint(Json checkpoint, Json progress) {
+            this.checkpoint = checkpoint;
+            update(this, record -> record
+                    .set("checkpoint", checkpoint)
+                    .setIfNotNull("progress", progress));
+        }
+
+        public void progress(Json progress) {
+            update(this, record -> record.set("progress", progress));
+        }
+
+        public boolean isCancelled() {
+            return cancelRequested;
+        }
+    }
+
+    private interface Mutation {
+        /**
+         * @return the record to save, or null to leave it as it is
+         */
+        Json apply(Json record);
+    }
+
+    private final Store store;
+    private final String instanceId;
+    private final Listener listener;
+    private final Map<String, Task> tasks = new ConcurrentHashMap<>();
+    private final Map<String, Job> local = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private volatile boolean stopping = false;
+
+    public JobManager(Store store, String instanceId, Listener listener, int workers, int maxQueued) {
+        this.store = store;
+        this.instanceId = instanceId;
+        this.listener = listener;
+        this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, maxQueued)));
+    }
+
+    public void register(String type, Task task) {
+        tasks.put(type, task);
+    }
+
+    /**
+     * Starts the heartbeat of the jobs of this instance and the recovery of the jobs left by other ones
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                heartbeat();
+                recover();
+            } catch (Exception e) {
+                logger.warn(String.format("Jobs could not be checked [%s]", e.getMessage()), e);
+            }
+        }, 0, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the jobs of this instance. Running and queued jobs are not finished: they release their lease
+     * and stay in the index, so they are resumed from their checkpoint by the next instance that checks them.
+     */
+    public void stop() {
+        stopping = true;
+        scheduler.shutdownNow();
+        // running jobs are interrupted and release their lease when they see it
+        executor.shutdownNow();
+        for (Job job : local.values()) {
+            if (!job.started) {
+                release(job);
+            }
+        }
+        try {
+            if (!executor.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.info(String.format("[%s] jobs did not stop in time, their leases expire later", local.size()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stores a new job and queues it
+     *
+     * @param userId user the job runs as
+     * @param type type of job, one of the registered tasks
+     * @param params parameters of the job
+     * @return the stored job
+     */
+    public Json submit(String userId, String type, Json params) {
+        if (!tasks.containsKey(type)) {
+            throw EndpointException.permanent(ErrorCode.ARGUMENT, String.format("Invalid job type [%s], valid types are %s", type, new TreeSet<>(tasks.keySet()))).returnCode(400);
+        }
+        if (executor.getQueue().remainingCapacity() == 0) {
+            throw EndpointException.retryable(ErrorCode.GENERAL, "Too many jobs in progress, try again later").returnCode(503);
+        }
+        final String jobId = UUID.randomUUID().toString();
+        final long now = System.currentTimeMillis();
+        final Json record = Json.map()
+                .set("_id", JOB_PREFIX + jobId)
+                .set("jobId", jobId)
+                .set("userId", userId)
+                .set("type", type)
+                .set("params", params != null ? params : Json.map())
+                .set("status", STATUS_QUEUED)
+                .set("owner", instanceId)
+                .set("leaseUntil", now + LEASE_DURATION)
+                .set("createdAt", now)
+                .set("updatedAt", now);
+        store.save(record);
+        updateIndex(jobId, true);
+        schedule(new Job(record));
+        EndpointMetrics.increment("jobs.submitted");
+        return view(record);
+    }
+
+    /**
+     * @return the job, or null if it does not exist or belongs to another user
+     */
+    public Json get(String jobId, String userId) {
+        final Json record = find(jobId);
+        return record != null && StringUtils.equals(record.string("userId"), userId) ? view(record) : null;
+    }
+
+    /**
+     * Requests the cancellation of the job. A job that is running stops at the next check, a job
+     * that did not start is cancelled right away.
+     *
+     * @return the job, or null if it does not exist or belongs to another user
+     */
+    public Json cancel(String jobId, String userId) {
+        final Json record = find(jobId);
+        if (record == null || !StringUtils.equals(record.string("userId"), userId)) {
+            return null;
+        }
+        if (isFinished(record)) {
+            return view(record);
+        }
+        record.set("cancelRequested", true).set("updatedAt", System.currentTimeMillis());
+        store.save(record);
+        final Job job = local.get(jobId);
+        if (job != null) {
+            job.cancelRequested = true;
+            final Future<?> future = job.future;
+            if (future != null && !job.started && future.cancel(false)) {
+                // it was still in the queue
+                finish(job, STATUS_CANCELLED, null, null);
+            } else if (future != null) {
+                future.cancel(true);
+            }
+        }
+        // jobs of other instances see the request in their next heartbeat
+        return view(find(jobId));
+    }
+
+    public Json toJson() {
+        return Json.map()
+                .set("running", executor.getActiveCount())
+                .set("queued", executor.getQueue().size())
+                .set("local", local.size());
+    }
+
+    private void schedule(Job job) {
+        if (local.putIfAbsent(job.id, job) != null) {
+            return;
+        }
+        try {
+            job.future = executor.submit(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            local.remove(job.id);
+            // left to the lease expiration, so another instance (or this one later) runs it
+            logger.info(String.format("Job [%s] could not be queued", job.id));
+        }
+    }
+
+    private void run(Job job) {
+        job.started = true;
+        final Task task = tasks.get(job.type);
+        try {
+            if (!claim(job)) {
+                local.remove(job.id);
+                return;
+            }
+            Json result = null;
+            while (result == null) {
+                if (job.cancelRequested) {
+                    finish(job, STATUS_CANCELLED, null, null);
+                    return;
+                }
+                if (stopping || Thread.currentThread().isInterrupted()) {
+                    // interrupted by the stop of the endpoint, not by a cancellation
+                    stopped(job);
+                    return;
+                }
+                try (Deadline.Scope deadline = Deadline.start(SLICE_DURATION)) {
+                    result = task.run(job);
+                }
+                EndpointMetrics.increment("jobs.slices");
+            }
+            finish(job, STATUS_COMPLETED, result, null);
+        } catch (Exception e) {
+            if (job.cancelRequested) {
+                finish(job, STATUS_CANCELLED, null, null);
+            } else if (stopping) {
+                stopped(job);
+            } else {
+                logger.info(String.format("Job [%s] failed [%s]", job.id, e.getMessage()));
+                finish(job, STATUS_FAILED, null, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Takes the lease of the job, writing it and reading it back as the data store has no atomic updates
+     */
+    private boolean claim(Job job) {
+        final Json record = find(job.id);
+        if (record == null || isFinished(record) || isLeasedByOther(record, System.currentTimeMillis())) {
+            return false;
+        }
+        if (Boolean.TRUE.equals(record.bool("cancelRequested"))) {
+            job.cancelRequested = true;
+        }
+        final long now = System.currentTimeMillis();
+        final Long attempts = record.longInteger("attempts");
+        record.set("owner", instanceId)
+                .set("leaseUntil", now + LEASE_DURATION)
+                .set("status", STATUS_RUNNING)
+                .set("attempts", attempts != null ? attempts + 1 : 1)
+                .set("updatedAt", now);
+        if (record.longInteger("startedAt") == null) {
+            record.set("startedAt", now);
+        }
+        store.save(record);
+        final Json stored = find(job.id);
+        if (stored != null && instanceId.equals(stored.string("owner"))) {
+            job.checkpoint = stored.json("checkpoint");
+            if (attempts != null && attempts > 0) {
+                EndpointMetrics.increment("jobs.resumed");
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Finishes the job once. A job that is already finished, like a queued job cancelled right when
+     * it started, is left as it is and its completion is not notified again.
+     */
+    private void finish(Job job, String status, Json result, String error) {
+        final Json[] finished = new Json[1];
+        update(job, record -> {
+            if (isFinished(record)) {
+                return null;
+            }
+            finished[0] = record
+                    .set("status", status)
+                    .set("result", result)
+                    .set("error", error)
+                    .set("owner", null)
+                    .set("leaseUntil", null)
+                    .set("finishedAt", System.currentTimeMillis());
+            return finished[0];
+        });
+        local.remove(job.id);
+        if (finished[0] == null) {
+            return;
+        }
+        updateIndex(job.id, false);
+        EndpointMetrics.increment("jobs." + status);
+        if (listener != null) {
+            try {
+                listener.finished(job.userId, view(finished[0]));
+            } catch (Exception e) {
+                logger.warn(String.format("Completion of job [%s] could not be notified [%s]", job.id, e.getMessage()), e);
+            }
+        }
+    }
+
+    private void stopped(Job job) {
+        // the stop interrupts the thread of the job, and the record still has to be written
+        Thread.interrupted();
+        release(job);
+    }
+
+    /**
+     * Gives up the job without finishing it, so it is taken again right away by the next instance that checks it
+     */
+    private void release(Job job) {
+        try {
+            update(job, record -> isFinished(record) ? null : record
+                    .set("status", STATUS_QUEUED)
+                    .set("owner", null)
+                    .set("leaseUntil", System.currentTimeMillis()));
+            EndpointMetrics.increment("jobs.released");
+        } catch (Exception e) {
+            logger.info(String.format("Lease of job [%s] could not be released [%s]", job.id, e.getMessage()));
+        } finally {
+            local.remove(job.id);
+        }
+    }
+
+    /**
+     * Reads the record again before changing it, so a cancellation requested meanwhile is not lost
+     */
+    private void update(Job job, Mutation mutation) {
+        synchronized (job) {
+            final Json record = find(job.id);
+            if (record == null) {
+                return;
+            }
+            if (Boolean.TRUE.equals(record.bool("cancelRequested"))) {
+                job.cancelRequested = true;
+            }
+            final Json updated = mutation.apply(record);
+            if (updated == null) {
+                return;
+            }
+            // the lease is renewed only while this instance holds it
+            if (!isFinished(updated) && instanceId.equals(updated.string("owner"))) {
+                updated.set("leaseUntil", System.currentTimeMillis() + LEASE_DURATION);
+            }
+            store.save(updated.set("updatedAt", System.currentTimeMillis()));
+        }
+    }
+
+    private void heartbeat() {
+        for (Job job : local.values()) {
+            update(job, record -> record);
+            if (job.cancelRequested && job.future != null) {
+                job.future.cancel(true);
+            }
+        }
+    }
+
+    private void recover() {
+        final Json index = store.find(INDEX_ID);
+        final List<String> jobIds = index != null ? index.strings("jobs") : null;
+        if (jobIds == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        for (String jobId : jobIds) {
+            if (local.containsKey(jobId)) {
+                continue;
+            }
+            final Json record = find(jobId);
+            if (record == null || isFinished(record)) {
+                updateIndex(jobId, false);
+            } else if (!isLeasedByOther(record, now) && executor.getQueue().remainingCapacity() > 0) {
+                logger.info(String.format("Job [%s] is resumed from its checkpoint", jobId));
+                schedule(new Job(record));
+            }
+        }
+    }
+
+    private void updateIndex(String jobId, boolean add) {
+        for (int attempt = 0; attempt < INDEX_ATTEMPTS; attempt++) {
+            final Json index = store.find(INDEX_ID);
+            final Set<String> jobIds = new LinkedHashSet<>();
+            if (index != null && index.strings("jobs") != null) {
+                jobIds.addAll(index.strings("jobs"));
+            }
+            if (add ? !jobIds.add(jobId) : !jobIds.remove(jobId)) {
+                return;
+            }
+            store.save(Json.map().set("_id", INDEX_ID).set("jobs", new ArrayList<>(jobIds)));
+            // other instances could have written the index at the same time, the last write wins
+            final Json stored = store.find(INDEX_ID);
+            final List<String> storedIds = stored != null ? stored.strings("jobs") : null;
+            if (storedIds != null && storedIds.contains(jobId) == add) {
+                return;
+            }
+        }
+        logger.warn(String.format("Index of jobs could not be updated for job [%s]", jobId));
+    }
+
+    private Json find(String jobId) {
+        final Json record = store.find(JOB_PREFIX + jobId);
+        return record != null && !record.isEmpty() ? record : null;
+    }
+
+    private boolean isLeasedByOther(Json record, long now) {
+        final String owner = record.string("owner");
+        final Long until = record.longInteger("leaseUntil");
+        return StringUtils.isNotBlank(owner) && !instanceId.equals(owner) && until != null && until > now;
+    }
+
+    private static boolean isFinished(Json record) {
+        final String status = record.string("status");
+        return STATUS_COMPLETED.equals(status) || STATUS_FAILED.equals(status) || STATUS_CANCELLED.equals(status);
+    }
+
+    private static Json view(Json record) {
+        return Json.map()
+                .set("jobId", record.string("jobId"))
+                .set("type", record.string("type"))
+                .set("status", record.string("status"))
+                .setIfNotNull("progress", record.json("progress"))
+                .setIfNotNull("result", record.json("result"))
+                .setIfNotNull("error", record.string("error"))
+                .set("cancelRequested", Boolean.TRUE.equals(record.bool("cancelRequested")))
+                .setIfNotNull("createdAt", record.longInteger("createdAt"))
+                .setIfNotNull("finishedAt", record.longInteger("finishedAt"));
+    }
+}
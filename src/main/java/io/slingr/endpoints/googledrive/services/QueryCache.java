@@ -0,0 +1,329 @@
+package io.slingr.endpoints.googledrive.services;
+
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Per user cache of the results of {@code files.list} searches
+ *
+ * <p>Results are keyed by the normalized query and the rest of the parameters. Before a cached result
+ * is used, the changes feed of the user is read (at most once every few seconds), and the results
+ * affected by a change are dropped: results that contain the changed file, results of queries
+ * restricted to a parent of the changed file, and results of queries that are not restricted to
+ * parents, as any change could match them. Results also expire after a fixed time, in case a change
+ * is missed, and mutations sent through the endpoint drop all the results of the user. A search that
+ * was running while results of the user were dropped is not cached, as it could have missed the change.
+ */
+public class QueryCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryCache.class);
+
+    private static final long DEFAULT_TTL = 60 * 1000;
+    private static final long CHANGES_POLL_INTERVAL = 5 * 1000;
+    private static final int MAX_ENTRIES_PER_USER = 200;
+    private static final int MAX_CHANGE_PAGES = 10;
+    private static final String CHANGES_FIELDS = "nextPageToken, newStartPageToken, changes(fileId, removed, time, file(parents))";
+    private static final Pattern PARENT_CLAUSE = Pattern.compile("'((?:[^'\\\\]|\\\\.)*)'\\s+in\\s+parents", Pattern.CASE_INSENSITIVE);
+    private static final Pattern QUOTED = Pattern.compile("'(?:[^'\\\\]|\\\\.)*'");
+    private static final Pattern BROADENING = Pattern.compile("\\b(or|not)\\b", Pattern.CASE_INSENSITIVE);
+
+    public interface Loader {
+        Json load() throws IOException;
+    }
+
+    /**
+     * Access to the changes feed of the user
+     */
+    public interface ChangesFeed {
+        String startPageToken() throws IOException;
+
+        ChangeList changes(String pageToken, String fields) throws IOException;
+    }
+
+    private static final class Entry {
+        private final Json result;
+        private final long storedAt = System.currentTimeMillis();
+        // null when the query is not restricted to parents
+        private final Set<String> parents;
+        private final Set<String> fileIds = new HashSet<>();
+
+        private Entry(Json result, Set<String> parents) {
+            this.result = result;
+            this.parents = parents;
+            final List<Json> files = result.jsons("files");
+            if (files != null) {
+                for (Json file : files) {
+                    fileIds.add(file.string("id"));
+                }
+            }
+        }
+
+        private boolean isAffectedBy(String fileId, List<String> changedParents) {
+            if (parents == null || fileIds.contains(fileId)) {
+                return true;
+            }
+            if (changedParents != null) {
+                for (String parent : changedParents) {
+                    if (parents.contains(parent)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class UserQueries {
+        private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES_PER_USER;
+            }
+        };
+        private final ReentrantLock polling = new ReentrantLock();
+        // increased each time results are dropped, guarded by the lock of the queries
+        private long generation = 0;
+        private volatile String pageToken;
+        private volatile long polledAt = 0;
+    }
+
+    private final ConcurrentMap<String, UserQueries> users = new ConcurrentHashMap<>();
+    private final long ttl;
+
+    public QueryCache() {
+        this(DEFAULT_TTL);
+    }
+
+    public QueryCache(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return true if the request is a search of files that can be cached
+     */
+    public static boolean isCacheable(String url, Json params) {
+        return "files.list".equals(FieldMaskPolicy.resource(url)) && params != null && StringUtils.isNotBlank(params.string("q"));
+    }
+
+    /**
+     * Gets the result of the search from the cache, or runs it and caches the result
+     *
+     * @param userId user id
+     * @param url url of the request
+     * @param params parameters of the request, with the query in {@code q}
+     * @param loader runs the search
+     * @param feed reads the changes of the user, to drop the results that changed
+     * @return copy of the result
+     */
+    public Json get(String userId, String url, Json params, Loader loader, ChangesFeed feed) throws IOException {
+        final UserQueries queries = users.computeIfAbsent(userId, key -> new UserQueries());
+        sync(userId, queries, feed);
+
+        final String key = key(url, params);
+        final Entry entry;
+        final long generation;
+        synchronized (queries) {
+            generation = queries.generation;
+            entry = queries.entries.get(key);
+            if (entry != null && System.currentTimeMillis() - entry.storedAt > ttl) {
+                queries.entries.remove(key);
+                EndpointMetrics.increment("queryCache.expired");
+            }
+        }
+        if (entry != null && System.currentTimeMillis() - entry.storedAt <= ttl) {
+            EndpointMetrics.increment("queryCache.hits");
+            EndpointMetrics.add("queryCache.hitAgeMillis", System.currentTimeMillis() - entry.storedAt);
+            return RequestCoalescer.copy(entry.result);
+        }
+
+        EndpointMetrics.increment("queryCache.misses");
+        final Json result = loader.load();
+        // errors are not cached, and neither are results loaded when the feed could not be read
+        if (result != null && result.contains("files") && queries.pageToken != null) {
+            synchronized (queries) {
+                if (queries.generation == generation) {
+                    queries.entries.put(key, new Entry(RequestCoalescer.copy(result), parents(params.string("q"))));
+                } else {
+                    EndpointMetrics.increment("queryCache.staleLoads");
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops all the results of the user, for example after a mutation
+     */
+    public void invalidateUser(String userId) {
+        final UserQueries queries = userId != null ? users.get(userId) : null;
+        if (queries != null) {
+            synchronized (queries) {
+                queries.generation++;
+                queries.entries.clear();
+            }
+        }
+    }
+
+    public void remove(String userId) {
+        if (userId != null) {
+            users.remove(userId);
+        }
+    }
+
+    public Json toJson() {
+        final long hits = EndpointMetrics.get("queryCache.hits");
+        final long misses = EndpointMetrics.get("queryCache.misses");
+        final long invalidated = EndpointMetrics.get("queryCache.invalidated");
+        int entries = 0;
+        for (UserQueries queries : users.values()) {
+            synchronized (queries) {
+                entries += queries.entries.size();
+            }
+        }
+        return Json.map()
+                .set("users", users.size())
+                .set("entries", entries)
+                .set("hits", hits)
+                .set("misses", misses)
+                .set("hitRate", hits + misses > 0 ? (double) hits / (hits + misses) : 0)
+                .set("averageHitAgeMillis", hits > 0 ? EndpointMetrics.get("queryCache.hitAgeMillis") / hits : 0)
+                .set("averageFreshnessLagMillis", invalidated > 0 ? EndpointMetrics.get("queryCache.freshnessLagMillis") / invalidated : 0);
+    }
+
+    private void sync(String userId, UserQueries queries, ChangesFeed feed) {
+        if (System.currentTimeMillis() - queries.polledAt < CHANGES_POLL_INTERVAL || !queries.polling.tryLock()) {
+            // results are at most one poll interval behind the feed
+            return;
+        }
+        try {
+            if (queries.pageToken == null) {
+                // changes done before the first token are unknown, so nothing cached before it is kept
+                queries.pageToken = feed.startPageToken();
+                synchronized (queries) {
+                    queries.generation++;
+                    queries.entries.clear();
+                }
+            } else {
+                poll(queries, feed);
+            }
+            queries.polledAt = System.currentTimeMillis();
+        } catch (Exception e) {
+            logger.info(String.format("Changes of user [%s] could not be read [%s]", userId, e.getMessage()));
+            queries.pageToken = null;
+            queries.polledAt = 0;
+            synchronized (queries) {
+                queries.generation++;
+                queries.entries.clear();
+            }
+        } finally {
+            queries.polling.unlock();
+        }
+    }
+
+    private void poll(UserQueries queries, ChangesFeed feed) throws IOException {
+        String pageToken = queries.pageToken;
+        for (int page = 0; page < MAX_CHANGE_PAGES; page++) {
+            final ChangeList changes = feed.changes(pageToken, CHANGES_FIELDS);
+            EndpointMetrics.increment("queryCache.changePolls");
+            if (changes.getChanges() != null) {
+                for (Change change : changes.getChanges()) {
+                    apply(queries, change);
+                }
+            }
+            if (StringUtils.isNotBlank(changes.getNewStartPageToken())) {
+                queries.pageToken = changes.getNewStartPageToken();
+                return;
+            }
+            pageToken = changes.getNextPageToken();
+            queries.pageToken = pageToken;
+        }
+        // too many changes to go through now, the rest are read in the next poll
+        synchronized (queries) {
+            queries.generation++;
+            queries.entries.clear();
+        }
+    }
+
+    private void apply(UserQueries queries, Change change) {
+        if (change.getFileId() == null) {
+            return;
+        }
+        final List<String> parents = change.getFile() != null ? change.getFile().getParents() : null;
+        final long now = System.currentTimeMillis();
+        synchronized (queries) {
+            // a search running now could have read the file before the change
+            queries.generation++;
+            final Iterator<Entry> entries = queries.entries.values().iterator();
+            while (entries.hasNext()) {
+                if (entries.next().isAffectedBy(change.getFileId(), parents)) {
+                    entries.remove();
+                    EndpointMetrics.increment("queryCache.invalidated");
+                    if (change.getTime() != null) {
+                        EndpointMetrics.add("queryCache.freshnessLagMillis", Math.max(0, now - change.getTime().getValue()));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Parents the query is restricted to, or null if the query can match files in any folder
+     */
+    static Set<String> parents(String q) {
+        if (BROADENING.matcher(QUOTED.matcher(q).replaceAll("''")).find()) {
+            return null;
+        }
+        final Set<String> parents = new HashSet<>();
+        final Matcher matcher = PARENT_CLAUSE.matcher(q);
+        while (matcher.find()) {
+            parents.add(matcher.group(1).replace("\\'", "'"));
+        }
+        return parents.isEmpty() ? null : parents;
+    }
+
+    static String key(String url, Json params) {
+        final Map<String, Object> normalized = new TreeMap<>(params.toMap());
+        normalized.put("q", normalize(params.string("q")));
+        return url + "|" + normalized;
+    }
+
+    /**
+     * Collapses the whitespace of the query that is not inside quotes
+     */
+    private static String normalize(String q) {
+        final StringBuilder normalized = new StringBuilder();
+        boolean quoted = false;
+        boolean space = false;
+        for (int i = 0; i < q.length(); i++) {
+            final char c = q.charAt(i);
+            if (!quoted && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && normalized.length() > 0) {
+                normalized.append(' ');
+            }
+            space = false;
+            normalized.append(c);
+            if (c == '\\' && quoted && i + 1 < q.length()) {
+                normalized.append(q.charAt(++i));
+            } else if (c == '\'') {
+                quoted = !quoted;
+            }
+        }
+        return normalized.toString();
+    }
+}
@@ -0,0 +1,107 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.googledrive.services.utils.Deadline;
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.utils.Json;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.function.UnaryOperator;
+
+/**
+ * <p>Coalesces identical read requests that are in flight at the same time
+ *
+ * <p>The first request for a key runs the call, and the requests for the same key that arrive while
+ * it runs wait for it and get a copy of its result (or its exception). The result returned to the
+ * first request is shared, so it must not be modified. Only reads must go through the coalescer:
+ * mutations are never coalesced.
+ */
+public class RequestCoalescer {
+
+    public interface Call<T> {
+        T call() throws IOException;
+    }
+
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the call, or waits for the identical call that is already in flight
+     *
+     * @param key normalized key of the request, see {@link #key(String, String, String, Json)}
+     * @param call the call to run
+     * @param copy copies the result for the requests that share it, as results can be mutable
+     * @return result of the call
+     * @throws IOException if the shared call failed with an I/O error
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Call<T> call, UnaryOperator<T> copy) throws IOException {
+        final CompletableFuture<Object> leader = new CompletableFuture<>();
+        final CompletableFuture<Object> existing = inFlight.putIfAbsent(key, leader);
+        if (existing != null) {
+            EndpointMetrics.increment("coalescer.coalesced");
+            final T result = (T) await(existing);
+            return result != null ? copy.apply(result) : null;
+        }
+        EndpointMetrics.increment("coalescer.calls");
+        try {
+            final T result = call.call();
+            // each follower takes its own copy, so the result must not be modified by the caller
+            leader.complete(result);
+            return result;
+        } catch (IOException | RuntimeException | Error e) {
+            leader.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, leader);
+        }
+    }
+
+    /**
+     * Normalized key of a read request: the parameters are sorted so their order does not matter
+     *
+     * @param operation kind of request, like {@code get} or {@code download}
+     * @param userId user that sends the request, as results depend on the permissions of the user
+     * @param url url or id of the resource
+     * @param params parameters of the request, can be null
+     * @return key of the request
+     */
+    public static String key(String operation, String userId, String url, Json params) {
+        final StringBuilder key = new StringBuilder(operation).append('|').append(userId).append('|').append(url);
+        if (params != null && !params.isEmpty()) {
+            key.append('|').append(new TreeMap<>(params.toMap()));
+        }
+        return key.toString();
+    }
+
+    public static Json copy(Json json) {
+        return Json.parse(json.toString());
+    }
+
+    private static Object await(CompletableFuture<Object> future) throws IOException {
+        try {
+            final Deadline deadline = Deadline.current();
+            return deadline != null ? future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS) : future.get();
+        } catch (TimeoutException e) {
+            throw Deadline.timeout("coalesced");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw EndpointException.retryable(ErrorCode.GENERAL, "Interrupted while waiting for the request");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause != null ? cause.getMessage() : e.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.googledrive.services.utils.Deadline;
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.utils.Json;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Hedges idempotent read requests to cut their tail latency
+ *
+ * <p>The first attempt of a request is sent right away. If it did not answer after a delay taken from
+ * the recent latencies of the same operation (their 95th percentile), a second identical attempt is sent,
+ * the first one that answers wins and the other one is cancelled. Hedges are limited by a budget: each
+ * request earns a fraction of a hedge and each hedge spends a whole one, so the extra load stays under
+ * that fraction of the requests. Only reads must go through the hedger.
+ */
+public class RequestHedger {
+
+    private static final int WINDOW_SIZE = 512;
+    // no hedges are sent until the latencies of the operation are known
+    private static final int MIN_SAMPLES = 50;
+    private static final long MIN_DELAY = 20;
+    private static final long MAX_DELAY = 2000;
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final double MAX_TOKENS = 10;
+
+    public interface Call<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Recent latencies, in milliseconds
+     */
+    private static final class Window {
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int count = 0;
+        private int next = 0;
+
+        private synchronized void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % WINDOW_SIZE;
+            count = Math.min(count + 1, WINDOW_SIZE);
+        }
+
+        private synchronized long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) Math.ceil(percentile * count) - 1)];
+        }
+
+        private synchronized int size() {
+            return count;
+        }
+    }
+
+    private static final class Operation {
+        // latency of the first attempts, used to calculate the delay of the hedges; it is also the
+        // latency the callers would see without hedging. First attempts that lost against their hedge
+        // are recorded with the time they had run when they were cancelled, which is a lower bound.
+        private final Window attempts = new Window();
+        // latency seen by the callers, with hedging
+        private final Window calls = new Window();
+        private volatile long delay = MAX_DELAY;
+    }
+
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "google-drive-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final double budget;
+    private double tokens = 1;
+
+    /**
+     * @param budget fraction of the requests that can be hedged, for example 0.05 for 5%
+     */
+    public RequestHedger(double budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Runs the call, sending a second attempt if the first one is slow
+     *
+     * @param operation name of the operation, latencies are tracked per operation
+     * @param call the call to run, it is called once per attempt and must be idempotent
+     * @return result of the attempt that answered first
+     * @throws IOException if all the attempts failed with an I/O error
+     */
+    public <T> T execute(String operation, Call<T> call) throws IOException {
+        final Operation stats = operations.computeIfAbsent(operation, key -> new Operation());
+        final boolean ready = stats.attempts.size() >= MIN_SAMPLES;
+        earn();
+        EndpointMetrics.increment("hedge.requests");
+
+        final long start = System.currentTimeMillis();
+        // the latency of the first attempt is recorded once, when it finishes or when it is cancelled
+        final AtomicBoolean recorded = new AtomicBoolean(false);
+        final CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+        final Future<T> first = completion.submit(Deadline.propagate(() -> {
+            final T result = call.call();
+            if (recorded.compareAndSet(false, true)) {
+                stats.attempts.add(System.currentTimeMillis() - start);
+            }
+            return result;
+        }));
+        Future<T> hedge = null;
+        try {
+            Future<T> done = ready ? completion.poll(stats.delay, TimeUnit.MILLISECONDS) : null;
+            if (done == null && ready) {
+                if (spend()) {
+                    EndpointMetrics.increment("hedge.sent");
+                    hedge = completion.submit(Deadline.propagate(call::call));
+                } else {
+                    EndpointMetrics.increment("hedge.budgetExhausted");
+                }
+            }
+            if (done == null) {
+                done = completion.take();
+            }
+            T result;
+            try {
+                result = done.get();
+            } catch (ExecutionException e) {
+                if (hedge == null) {
+                    throw e;
+                }
+                // the other attempt can still succeed
+                done = completion.take();
+                result = done.get();
+            }
+            stats.calls.add(System.currentTimeMillis() - start);
+            if (done != first) {
+                EndpointMetrics.increment("hedge.wins");
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw EndpointException.retryable(ErrorCode.GENERAL, "Interrupted while waiting for the request");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // the attempt that lost is cancelled and its response discarded. A first attempt that did not
+            // finish took at least until now, leaving it out would make the delay and the latency without
+            // hedging look lower than they are.
+            if (!first.isDone() && recorded.compareAndSet(false, true)) {
+                stats.attempts.add(System.currentTimeMillis() - start);
+                EndpointMetrics.increment("hedge.censoredAttempts");
+            }
+            first.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+            updateDelay(stats);
+        }
+    }
+
+    private synchronized void earn() {
+        tokens = Math.min(MAX_TOKENS, tokens + budget);
+    }
+
+    private synchronized boolean spend() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    private static void updateDelay(Operation stats) {
+        if (stats.attempts.size() >= MIN_SAMPLES) {
+            stats.delay = Math.max(MIN_DELAY, Math.min(MAX_DELAY, stats.attempts.percentile(HEDGE_PERCENTILE)));
+        }
+    }
+
+    /**
+     * @return hedge rate, and per operation the current delay and the 99th percentile of the latency with
+     * and without hedging. The latency without hedging counts cancelled first attempts with the time they
+     * had run, so the improvement is a lower bound.
+     */
+    public Json toJson() {
+        final long requests = EndpointMetrics.get("hedge.requests");
+        final long sent = EndpointMetrics.get("hedge.sent");
+        final Json perOperation = Json.map();
+        for (Map.Entry<String, Operation> entry : new TreeMap<>(operations).entrySet()) {
+            final Operation stats = entry.getValue();
+            final long p99 = stats.calls.percentile(0.99);
+            final long unhedgedP99 = stats.attempts.percentile(0.99);
+            perOperation.set(entry.getKey(), Json.map()
+                    .set("delayMillis", stats.delay)
+                    .set("p99Millis", p99)
+                    .set("unhedgedP99Millis", unhedgedP99)
+                    .set("p99ImprovementMillis", Math.max(0, unhedgedP99 - p99)));
+        }
+        return Json.map()
+                .set("budget", budget)
+                .set("requests", requests)
+                .set("hedges", sent)
+                .set("hedgeRate", requests > 0 ? (double) sent / requests : 0)
+                .set("hedgeWins", EndpointMetrics.get("hedge.wins"))
+                .set("budgetExhausted", EndpointMetrics.get("hedge.budgetExhausted"))
+                .set("operations", perOperation);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
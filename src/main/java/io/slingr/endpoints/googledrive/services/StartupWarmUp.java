@@ -0,0 +1,127 @@
+package io.slingr.endpoints.googledrive.services;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.drive.GenericGoogleDriveService;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import io.slingr.endpoints.googledrive.services.utils.HttpTransports;
+import io.slingr.endpoints.googledrive.services.utils.MimeExtensions;
+import io.slingr.endpoints.utils.Json;
+import org.apache.tika.mime.MimeTypes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Preloads what the first requests would otherwise pay for: classes of the Google client stack,
+ * the Tika mime registry, the trust store, TLS connections to Google and the JSON codecs.
+ *
+ * <p>It also keeps the readiness state of the endpoint and the time spent in each startup phase.
+ */
+public class StartupWarmUp {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupWarmUp.class);
+
+    public enum State {
+        STARTING, WARMING_UP, READY
+    }
+
+    private static final String[] WARM_UP_URLS = {
+            "https://www.googleapis.com/drive/v3/about",
+            "https://accounts.google.com/o/oauth2/token"
+    };
+
+    private final long startedAt = System.currentTimeMillis();
+    private final Map<String, Long> phases = Collections.synchronizedMap(new LinkedHashMap<>());
+    private volatile State state = State.STARTING;
+    private volatile long readyAt = -1;
+
+    public interface Phase {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs a startup phase and records the time it took. Failures are logged and recorded as -1,
+     * as the endpoint can work without any of the warm-up phases.
+     */
+    public void phase(String name, Phase phase) {
+        final long start = System.nanoTime();
+        try {
+            phase.run();
+            phases.put(name, (System.nanoTime() - start) / 1000000);
+        } catch (Exception e) {
+            phases.put(name, -1L);
+            logger.info(String.format("Startup phase [%s] failed [%s]", name, e.getMessage()));
+        }
+    }
+
+    /**
+     * Runs the warm-up phases and marks the endpoint as ready
+     *
+     * @param openConnections true if TLS connections to Google must be opened
+     */
+    public void warmUp(boolean openConnections) {
+        state = State.WARMING_UP;
+        phase("classes", () -> {
+            Class.forName(GenericGoogleDriveService.class.getName());
+            Class.forName(File.class.getName());
+            Class.forName(FileList.class.getName());
+            Class.forName(GoogleDriveService.class.getName());
+        });
+        phase("mimeTypes", () -> {
+            MimeTypes.getDefaultMimeTypes();
+            MimeExtensions.extension("application/pdf");
+        });
+        phase("trustStore", HttpTransports::trusted);
+        phase("json", () -> {
+            final JsonFactory jsonFactory = HttpTransports.jsonFactory();
+            final File file = new File().setId("warm-up").setName("warm-up.pdf").setMimeType("application/pdf").setSize(1L);
+            final String serialized = jsonFactory.toString(new FileList().setFiles(Collections.singletonList(file)));
+            jsonFactory.fromString(serialized, FileList.class);
+            Json.fromMap(jsonFactory.fromString(serialized, GenericJson.class)).toString();
+        });
+        if (openConnections) {
+            phase("connections", () -> {
+                for (String url : WARM_UP_URLS) {
+                    final HttpRequest request = HttpTransports.trusted().createRequestFactory().buildGetRequest(new GenericUrl(url));
+                    request.setThrowExceptionOnExecuteError(false);
+                    final HttpResponse response = request.execute();
+                    // the content is consumed so the connection goes back to the keep-alive pool
+                    response.ignore();
+                }
+            });
+        }
+        ready();
+    }
+
+    public void ready() {
+        readyAt = System.currentTimeMillis();
+        state = State.READY;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public Json toJson() {
+        final Json json = Json.map().set("state", state.name());
+        synchronized (phases) {
+            final Json breakdown = Json.map();
+            for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                breakdown.set(phase.getKey(), phase.getValue());
+            }
+            json.set("phases", breakdown);
+        }
+        if (readyAt > 0) {
+            json.set("startupTime", readyAt - startedAt);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,194 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+import io.slingr.endpoints.googledrive.services.entities.ValidToken;
+import io.slingr.endpoints.googledrive.services.utils.Deadline;
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Coordinates the refresh of user tokens between the instances of the endpoint
+ *
+ * <p>The user configuration in the data store holds a refresh lease and a token version. An instance
+ * that needs a new token takes the lease (writing it and reading it back to check that no other
+ * instance took it at the same time), refreshes the token and saves it with the next version,
+ * releasing the lease. Instances that find the lease taken wait until the new token is saved and
+ * use it, instead of refreshing the same token again and overwriting each other.
+ */
+public class TokenRefreshCoordinator {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenRefreshCoordinator.class);
+
+    public static final String LEASE_OWNER = "refreshLeaseOwner";
+    public static final String LEASE_UNTIL = "refreshLeaseUntil";
+    public static final String TOKEN_VERSION = "tokenVersion";
+
+    private static final long DEFAULT_LEASE_DURATION = 30 * 1000;
+    private static final long POLL_INTERVAL = 250;
+
+    /**
+     * Access to the user configurations, so the coordination can run over the endpoint data store
+     * or over an in-memory store
+     */
+    public interface UserStore {
+        Json find(String userId);
+
+        Json save(Json configuration);
+    }
+
+    public interface Refresher {
+        /**
+         * @param configuration current user configuration
+         * @return the token, refresh token and expiration time to store
+         */
+        Json refresh(Json configuration);
+    }
+
+    private final UserStore store;
+    private final String instanceId;
+    private final long leaseDuration;
+
+    public TokenRefreshCoordinator(UserStore store, String instanceId) {
+        this(store, instanceId, DEFAULT_LEASE_DURATION);
+    }
+
+    public TokenRefreshCoordinator(UserStore store, String instanceId, long leaseDuration) {
+        this.store = store;
+        this.instanceId = instanceId;
+        this.leaseDuration = leaseDuration;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Gets a valid token for the user, refreshing it if no other instance is doing it
+     *
+     * @param userId user id
+     * @param staleToken token that is known to be invalid (it will be refreshed even if it did not
+     *                   expire yet), or null
+     * @param refresher refreshes the token
+     * @return stored user configuration with a valid token, or null if the user is not connected
+     */
+    public Json refresh(String userId, String staleToken, Refresher refresher) {
+        final long waitUntil = System.currentTimeMillis() + leaseDuration;
+        while (true) {
+            Json configuration = store.find(userId);
+            if (configuration == null || configuration.isEmpty()) {
+                return null;
+            }
+            if (isFresh(configuration, staleToken)) {
+                return configuration;
+            }
+            final long now = System.currentTimeMillis();
+            if (!isLeasedByOther(configuration, now)) {
+                configuration = takeLease(userId, configuration, now);
+                if (configuration != null) {
+                    return refreshWithLease(userId, configuration, refresher);
+                }
+            }
+            EndpointMetrics.increment("tokenRefresh.waits");
+            if (System.currentTimeMillis() >= waitUntil) {
+                throw EndpointException.retryable(ErrorCode.API, String.format("Token of user [%s] is being refreshed by another instance", userId));
+            }
+            sleep();
+        }
+    }
+
+    private Json takeLease(String userId, Json configuration, long now) {
+        configuration.set(LEASE_OWNER, instanceId);
+        configuration.set(LEASE_UNTIL, now + leaseDuration);
+        configuration.set("_id", userId);
+        store.save(configuration);
+        // another instance could have written its lease at the same time, the last write wins
+        final Json stored = store.find(userId);
+        if (stored != null && instanceId.equals(stored.string(LEASE_OWNER))) {
+            return stored;
+        }
+        EndpointMetrics.increment("tokenRefresh.leaseConflicts");
+        return null;
+    }
+
+    private Json refreshWithLease(String userId, Json configuration, Refresher refresher) {
+        final long version = version(configuration);
+        final Json token;
+        try {
+            token = refresher.refresh(configuration);
+        } catch (RuntimeException e) {
+            releaseLease(userId);
+            throw e;
+        }
+        final Json stored = store.find(userId);
+        if (stored == null || stored.isEmpty()) {
+            // disconnected while the token was refreshed
+            return null;
+        }
+        if (version(stored) != version) {
+            // the lease expired and another instance saved a newer token, which is kept
+            logger.info(String.format("Token of user [%s] was updated by another instance", userId));
+            EndpointMetrics.increment("tokenRefresh.versionConflicts");
+            return stored;
+        }
+        stored.set(ValidToken.TOKEN, token.string(ValidToken.TOKEN));
+        stored.set(ValidToken.REFRESH_TOKEN, token.string(ValidToken.REFRESH_TOKEN));
+        stored.set(ValidToken.EXPIRATION_TIME, token.string(ValidToken.EXPIRATION_TIME));
+        stored.set(TOKEN_VERSION, version + 1);
+        stored.set(LEASE_OWNER, null);
+        stored.set(LEASE_UNTIL, null);
+        stored.set("_id", userId);
+        store.save(stored);
+        EndpointMetrics.increment("tokenRefresh.refreshed");
+        return stored;
+    }
+
+    private void releaseLease(String userId) {
+        try {
+            final Json stored = store.find(userId);
+            if (stored != null && instanceId.equals(stored.string(LEASE_OWNER))) {
+                stored.set(LEASE_OWNER, null);
+                stored.set(LEASE_UNTIL, null);
+                stored.set("_id", userId);
+                store.save(stored);
+            }
+        } catch (Exception e) {
+            logger.info(String.format("Refresh lease of user [%s] could not be released [%s]", userId, e.getMessage()));
+        }
+    }
+
+    private boolean isLeasedByOther(Json configuration, long now) {
+        final String owner = configuration.string(LEASE_OWNER);
+        final Long until = configuration.longInteger(LEASE_UNTIL);
+        return StringUtils.isNotBlank(owner) && !instanceId.equals(owner) && until != null && until > now;
+    }
+
+    private static boolean isFresh(Json configuration, String staleToken) {
+        final String token = configuration.string(ValidToken.TOKEN);
+        if (StringUtils.isBlank(token) || token.equals(staleToken)) {
+            return false;
+        }
+        return !new ValidToken(token, configuration.string(ValidToken.REFRESH_TOKEN), configuration.string(ValidToken.EXPIRATION_TIME)).isExpired();
+    }
+
+    public static long version(Json configuration) {
+        final Long version = configuration != null ? configuration.longInteger(TOKEN_VERSION) : null;
+        return version != null ? version : 0;
+    }
+
+    private static void sleep() {
+        final Deadline deadline = Deadline.current();
+        if (deadline != null && deadline.isExpired()) {
+            throw Deadline.timeout("token");
+        }
+        try {
+            Thread.sleep(POLL_INTERVAL);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw EndpointException.retryable(ErrorCode.GENERAL, "Interrupted while waiting for the token refresh");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.googledrive.services.entities.ValidToken;
+import io.slingr.endpoints.utils.Json;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>In-memory registry of the access tokens of the connected users
+ *
+ * <p>Entries are immutable and hold the expiration as epoch millis, so reading a token does not need
+ * locks, parsing or allocations. The formatted expiration time of the user configuration is only
+ * parsed when an entry is stored. When a maximum age is set, entries older than it are not used, so
+ * tokens updated or removed by other instances of the endpoint are read again from the data store.
+ */
+public class TokenRegistry {
+
+    // tokens that expire within this margin are refreshed instead of being used
+    private static final long EXPIRATION_MARGIN = 60 * 1000;
+
+    public static final class Entry {
+        private final String token;
+        private final long expiresAt;
+        private final long registeredAt;
+
+        private Entry(String token, long expiresAt, long registeredAt) {
+            this.token = token;
+            this.expiresAt = expiresAt;
+            this.registeredAt = registeredAt;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        public boolean isValid(long now) {
+            return expiresAt == ValidToken.NO_EXPIRATION || expiresAt - EXPIRATION_MARGIN > now;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> tokens = new ConcurrentHashMap<>();
+    private final long maxAge;
+
+    public TokenRegistry() {
+        this(-1);
+    }
+
+    /**
+     * @param maxAge milliseconds an entry can be used since it was registered, or -1 for no limit
+     */
+    public TokenRegistry(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param userId user id
+     * @return the access token of the user if it is registered and not about to expire, null otherwise
+     */
+    public String validToken(String userId) {
+        final Entry entry = userId != null ? tokens.get(userId) : null;
+        if (entry == null) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        return entry.isValid(now) && (maxAge < 0 || now - entry.registeredAt < maxAge) ? entry.token : null;
+    }
+
+    public Entry get(String userId) {
+        return userId != null ? tokens.get(userId) : null;
+    }
+
+    public void put(String userId, String token, long expiresAt) {
+        if (StringUtils.isBlank(userId)) {
+            return;
+        }
+        if (StringUtils.isBlank(token)) {
+            tokens.remove(userId);
+        } else {
+            tokens.put(userId, new Entry(token, expiresAt, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Registers the token of a user configuration, as it is stored in the data store
+     */
+    public void put(String userId, Json configuration) {
+        if (configuration == null) {
+            remove(userId);
+        } else {
+            put(userId, configuration.string(ValidToken.TOKEN), ValidToken.parseExpirationTime(configuration.string(ValidToken.EXPIRATION_TIME)));
+        }
+    }
+
+    public void remove(String userId) {
+        if (userId != null) {
+            tokens.remove(userId);
+        }
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+}
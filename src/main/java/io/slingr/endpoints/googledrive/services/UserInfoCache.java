@@ -0,0 +1,117 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import io.slingr.endpoints.utils.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>In-memory cache of the profile of the connected users
+ *
+ * <p>Profiles are stored when users connect. Entries older than the TTL are still returned, and a
+ * single background refresh is started for them, so callers never wait for Google once the profile
+ * of the user is known.
+ */
+public class UserInfoCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserInfoCache.class);
+
+    private static final long DEFAULT_TTL = 60 * 60 * 1000;
+
+    public interface Loader {
+        /**
+         * @return profile of the user, or null if the user is not connected
+         * @throws IOException if the profile can not be fetched
+         */
+        Json load(String userId) throws IOException;
+    }
+
+    private static final class Entry {
+        private final Json information;
+        private final long fetchedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        private Entry(Json information, long fetchedAt) {
+            this.information = information;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Executor executor;
+    private final long ttl;
+
+    public UserInfoCache(Executor executor) {
+        this(executor, DEFAULT_TTL);
+    }
+
+    public UserInfoCache(Executor executor, long ttl) {
+        this.executor = executor;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Gets the profile of the user, loading it only when it is not cached
+     *
+     * @param userId user id
+     * @param loader fetches the profile from Google
+     * @return copy of the profile, or null if the user is not connected
+     * @throws IOException if the profile is not cached and can not be fetched
+     */
+    public Json get(String userId, Loader loader) throws IOException {
+        final Entry entry = entries.get(userId);
+        if (entry == null) {
+            EndpointMetrics.increment("userInfo.misses");
+            final Json information = loader.load(userId);
+            if (information != null) {
+                put(userId, information);
+            }
+            return information;
+        }
+        EndpointMetrics.increment("userInfo.hits");
+        if (System.currentTimeMillis() - entry.fetchedAt > ttl && entry.refreshing.compareAndSet(false, true)) {
+            refreshInBackground(userId, entry, loader);
+        }
+        return RequestCoalescer.copy(entry.information);
+    }
+
+    public void put(String userId, Json information) {
+        if (userId != null && information != null) {
+            entries.put(userId, new Entry(RequestCoalescer.copy(information), System.currentTimeMillis()));
+        }
+    }
+
+    public void remove(String userId) {
+        if (userId != null) {
+            entries.remove(userId);
+        }
+    }
+
+    private void refreshInBackground(String userId, Entry entry, Loader loader) {
+        try {
+            executor.execute(() -> {
+                try {
+                    final Json information = loader.load(userId);
+                    if (information == null) {
+                        entries.remove(userId, entry);
+                    } else if (entries.replace(userId, entry, new Entry(RequestCoalescer.copy(information), System.currentTimeMillis()))) {
+                        EndpointMetrics.increment("userInfo.refreshes");
+                    }
+                } catch (Exception e) {
+                    logger.info(String.format("Information of user [%s] could not be refreshed [%s]", userId, e.getMessage()));
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+}
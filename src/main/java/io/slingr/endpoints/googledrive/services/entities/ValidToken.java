@@ -4,13 +4,17 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
 import io.slingr.endpoints.googledrive.services.GoogleDriveService;
 import io.slingr.endpoints.utils.Json;
 import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.security.InvalidParameterException;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Valid token to perform request to Google
@@ -23,26 +27,26 @@ public class ValidToken {
     public static final String REFRESH_TOKEN = "refreshToken";
     public static final String EXPIRATION_TIME = "expirationTime";
 
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat(GoogleDriveService.EXPIRATION_TIME_FORMAT);
-    private static final DateFormat DATE_FORMAT_2 =  new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+    public static final long NO_EXPIRATION = Long.MAX_VALUE;
+
+    private static final Logger logger = LoggerFactory.getLogger(ValidToken.class);
+
+    // formatters are immutable, so they can be shared between threads
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern(GoogleDriveService.EXPIRATION_TIME_FORMAT);
+    private static final DateTimeFormatter[] PARSE_FORMATS = {
+            DATE_FORMAT,
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX"),
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX")
+    };
+
     private String token = null;
 	private final String refreshToken;
-	private Date expirationTime = null;
+	private long expirationTime = NO_EXPIRATION;
 
     public ValidToken(String token, String refreshToken, String expirationTime) {
         this.token = token;
         this.refreshToken = refreshToken;
-        if(StringUtils.isNotBlank(expirationTime)) {
-            try {
-                this.expirationTime = DATE_FORMAT.parse(expirationTime);
-            } catch (ParseException e) {
-                try {
-                    this.expirationTime = DATE_FORMAT_2.parse(expirationTime);
-                } catch (ParseException e2) {
-                    e2.printStackTrace();
-                }
-            }
-        }
+        this.expirationTime = parseExpirationTime(expirationTime);
     }
 
 	public ValidToken(GoogleTokenResponse response) {
@@ -62,40 +66,70 @@ public class ValidToken {
 	}
 
 	public Date getExpirationTime() {
-		return expirationTime;
+		return expirationTime != NO_EXPIRATION ? new Date(expirationTime) : null;
 	}
 
+    /**
+     * @return expiration time in epoch millis, or {@link #NO_EXPIRATION} if it is unknown
+     */
+    public long getExpirationMillis() {
+        return expirationTime;
+    }
+
 	public void setToken(String token) {
 		this.token = token;
 	}
 
 	public void setExpirationTime(Date expirationTime) {
-		this.expirationTime = expirationTime;
+		this.expirationTime = expirationTime != null ? expirationTime.getTime() : NO_EXPIRATION;
 	}
 
 	public void updateToken(GoogleTokenResponse response) {
         this.token = response.getAccessToken();
 
-        Calendar time = Calendar.getInstance();
+        final long now = System.currentTimeMillis();
         if(response.getExpiresInSeconds() != null) {
-            time.add(Calendar.SECOND, response.getExpiresInSeconds().intValue());
+            this.expirationTime = now + TimeUnit.SECONDS.toMillis(response.getExpiresInSeconds());
         } else {
-            time.add(Calendar.DATE, 30);
+            this.expirationTime = now + TimeUnit.DAYS.toMillis(30);
         }
-        this.expirationTime = time.getTime();
 	}
 
     public boolean isExpired() {
-        return StringUtils.isBlank(token) || (expirationTime != null && (System.currentTimeMillis() - expirationTime.getTime() > 0));
+        return StringUtils.isBlank(token) || System.currentTimeMillis() - expirationTime > 0;
     }
 
     public Json toJson() {
         final Json json = Json.map();
         json.set(TOKEN, token);
         json.set(REFRESH_TOKEN, refreshToken);
-        if(expirationTime != null) {
-            json.set(EXPIRATION_TIME, DATE_FORMAT.format(expirationTime));
+        if(expirationTime != NO_EXPIRATION) {
+            json.set(EXPIRATION_TIME, formatExpirationTime(expirationTime));
         }
         return json;
     }
+
+    /**
+     * Parses the expiration time as it is stored in the user configuration
+     *
+     * @param expirationTime formatted expiration time
+     * @return expiration time in epoch millis, or {@link #NO_EXPIRATION} if it is empty or invalid
+     */
+    public static long parseExpirationTime(String expirationTime) {
+        if(StringUtils.isNotBlank(expirationTime)) {
+            for (DateTimeFormatter format : PARSE_FORMATS) {
+                try {
+                    return OffsetDateTime.parse(expirationTime, format).toInstant().toEpochMilli();
+                } catch (DateTimeParseException e) {
+                    // try next format
+                }
+            }
+            logger.warn(String.format("Invalid token expiration time [%s]", expirationTime));
+        }
+        return NO_EXPIRATION;
+    }
+
+    public static String formatExpirationTime(long expirationTime) {
+        return DATE_FORMAT.format(Instant.ofEpochMilli(expirationTime).atZone(ZoneId.systemDefault()));
+    }
 }
@@ -0,0 +1,250 @@
+package io.slingr.endpoints.googledrive.services.utils;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+
+/**
+ * <p>Deadline of the function call being processed by the current thread
+ *
+ * <p>The deadline is set when a function starts and is read by the Google clients to derive the
+ * connect and read timeouts of each request from the remaining budget. Work handed to other threads
+ * must carry it with {@link #propagate(Callable)}. Streams guarded with {@link #guard(InputStream)} or
+ * {@link #guard(OutputStream)} fail once the deadline passes, which aborts the transfer in progress.
+ */
+public final class Deadline {
+
+    // upper bound of the time spent opening a connection, whatever the remaining budget is
+    public static final int MAX_CONNECT_TIMEOUT = 10 * 1000;
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Scope of a deadline in the current thread. Closing it restores the previous deadline.
+     */
+    public static final class Scope implements AutoCloseable {
+        private final Deadline previous;
+
+        private Scope(Deadline previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous != null) {
+                CURRENT.set(previous);
+            } else {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    /**
+     * Starts a deadline in the current thread. A deadline that is already set and expires earlier is kept.
+     *
+     * @param timeoutMillis budget in milliseconds
+     * @return scope that must be closed when the work finishes
+     */
+    public static Scope start(long timeoutMillis) {
+        final Deadline previous = CURRENT.get();
+        final Deadline deadline = new Deadline(System.currentTimeMillis() + Math.max(0, timeoutMillis));
+        CURRENT.set(previous != null && previous.expiresAt < deadline.expiresAt ? previous : deadline);
+        return new Scope(previous);
+    }
+
+    private static Scope attach(Deadline deadline) {
+        final Deadline previous = CURRENT.get();
+        if (deadline != null) {
+            CURRENT.set(deadline);
+        } else {
+            CURRENT.remove();
+        }
+        return new Scope(previous);
+    }
+
+    /**
+     * @return deadline of the current thread, or null if there is none
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    public long remainingMillis() {
+        return Math.max(0, expiresAt - System.currentTimeMillis());
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAt;
+    }
+
+    /**
+     * Fails if the deadline of the current thread has passed
+     *
+     * @param phase phase that was about to start, used in the metrics and the error
+     */
+    public static void check(String phase) {
+        final Deadline deadline = CURRENT.get();
+        if (deadline != null && deadline.isExpired()) {
+            throw timeout(phase);
+        }
+    }
+
+    /**
+     * Same as {@link #check(String)}, but fails with an I/O exception so it can be used inside HTTP clients
+     */
+    public static void checkIo(String phase) throws DeadlineExceededException {
+        final Deadline deadline = CURRENT.get();
+        if (deadline != null) {
+            deadline.checkExpired(phase);
+        }
+    }
+
+    public static EndpointException timeout(String phase) {
+        recordTimeout(phase);
+        return EndpointException.retryable(ErrorCode.API, String.format("Deadline of the request exceeded during [%s]", phase)).returnCode(504);
+    }
+
+    public static void recordTimeout(String phase) {
+        EndpointMetrics.increment("deadline.timeouts");
+        EndpointMetrics.increment("deadline.timeouts." + phase);
+    }
+
+    /**
+     * Records the timeouts of connections. Timeouts of the deadline are recorded when they are detected.
+     */
+    public static void recordIfTimeout(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DeadlineExceededException) {
+                return;
+            }
+        }
+        if (isTimeout(e)) {
+            recordTimeout("connection");
+        }
+    }
+
+    /**
+     * @return true if the exception is a timeout of a connection or of the deadline itself
+     */
+    public static boolean isTimeout(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException || cause instanceof DeadlineExceededException) {
+                return true;
+            }
+            if (cause instanceof InterruptedIOException && "timeout".equals(cause.getMessage())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param defaultTimeout timeout used when there is no deadline
+     * @return connect timeout in milliseconds for a request started now
+     */
+    public static int connectTimeout(int defaultTimeout) {
+        final Deadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return defaultTimeout;
+        }
+        return (int) Math.max(1, Math.min(Math.min(defaultTimeout, MAX_CONNECT_TIMEOUT), deadline.remainingMillis()));
+    }
+
+    /**
+     * @param defaultTimeout timeout used when there is no deadline, and upper limit when there is one
+     * @return read timeout in milliseconds for a request started now
+     */
+    public static int readTimeout(int defaultTimeout) {
+        final Deadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return defaultTimeout;
+        }
+        return (int) Math.max(1, Math.min(defaultTimeout, deadline.remainingMillis()));
+    }
+
+    /**
+     * Wraps a task so it runs with the deadline (and the trace) of the thread that creates it
+     */
+    public static <T> Callable<T> propagate(Callable<T> task) {
+        final Deadline deadline = CURRENT.get();
+        final Callable<T> traced = Tracer.propagate(task);
+        return () -> {
+            try (Scope ignored = attach(deadline)) {
+                return traced.call();
+            }
+        };
+    }
+
+    /**
+     * @return stream that fails once the deadline of the current thread passes, or the same
+     * stream if there is no deadline
+     */
+    public static InputStream guard(InputStream in) {
+        final Deadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                deadline.checkExpired("transfer");
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                deadline.checkExpired("transfer");
+                return super.read(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * @return stream that fails once the deadline of the current thread passes, or the same
+     * stream if there is no deadline
+     */
+    public static OutputStream guard(OutputStream out) {
+        final Deadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return out;
+        }
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                deadline.checkExpired("transfer");
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                deadline.checkExpired("transfer");
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    private void checkExpired(String phase) throws DeadlineExceededException {
+        if (isExpired()) {
+            recordTimeout(phase);
+            throw new DeadlineExceededException(String.format("Deadline of the request exceeded during [%s]", phase));
+        }
+    }
+
+    /**
+     * Thrown by guarded streams, so the HTTP client aborts the transfer and releases the connection
+     */
+    public static class DeadlineExceededException extends InterruptedIOException {
+        public DeadlineExceededException(String message) {
+            super(message);
+        }
+    }
+}
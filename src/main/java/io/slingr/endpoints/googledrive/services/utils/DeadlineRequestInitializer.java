@@ -0,0 +1,67 @@
+package io.slingr.endpoints.googledrive.services.utils;
+
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseInterceptor;
+
+import java.io.IOException;
+
+/**
+ * <p>Initializer of the requests of the Google clients that applies the deadline of the function call
+ *
+ * <p>Timeouts are calculated right before each execution (including retries and following pages)
+ * from the budget left at that moment, and a request is not sent if the deadline already passed.
+ */
+public class DeadlineRequestInitializer implements HttpRequestInitializer {
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 20 * 1000;
+    private static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+
+    private final HttpRequestInitializer delegate;
+
+    public DeadlineRequestInitializer(HttpRequestInitializer delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void initialize(HttpRequest request) throws IOException {
+        if (delegate != null) {
+            delegate.initialize(request);
+        }
+        final HttpExecuteInterceptor interceptor = request.getInterceptor();
+        request.setInterceptor(r -> {
+            if (interceptor != null) {
+                interceptor.intercept(r);
+            }
+            Deadline.checkIo("request");
+            r.setConnectTimeout(Deadline.connectTimeout(DEFAULT_CONNECT_TIMEOUT));
+            r.setReadTimeout(Deadline.readTimeout(DEFAULT_READ_TIMEOUT));
+        });
+        if (Tracer.isEnabled()) {
+            // the span covers each attempt until the response headers arrive, the body is read by the caller
+            final Tracer.Span[] span = new Tracer.Span[1];
+            final HttpExecuteInterceptor timed = request.getInterceptor();
+            request.setInterceptor(r -> {
+                timed.intercept(r);
+                if (span[0] != null) {
+                    // the previous attempt failed without a response
+                    span[0].tag("error", "no response").close();
+                }
+                span[0] = Tracer.leaf("http " + r.getRequestMethod())
+                        .tag("http.method", r.getRequestMethod())
+                        .tag("http.path", r.getUrl().getRawPath());
+            });
+            final HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+            request.setResponseInterceptor(response -> {
+                if (span[0] != null) {
+                    span[0].tag("http.status_code", response.getStatusCode()).close();
+                    span[0] = null;
+                }
+                if (responseInterceptor != null) {
+                    responseInterceptor.interceptResponse(response);
+                }
+            });
+        }
+    }
+}
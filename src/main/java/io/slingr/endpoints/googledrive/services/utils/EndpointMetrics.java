@@ -0,0 +1,39 @@
+package io.slingr.endpoints.googledrive.services.utils;
+
+import io.slingr.endpoints.utils.Json;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Named counters shared by the services of the endpoint
+ *
+ * <p>Counters are created on first use and are never reset while the endpoint is running.
+ */
+public class EndpointMetrics {
+
+    private static final Map<String, AtomicLong> COUNTERS = new ConcurrentHashMap<>();
+
+    public static long increment(String name) {
+        return add(name, 1);
+    }
+
+    public static long add(String name, long delta) {
+        return COUNTERS.computeIfAbsent(name, key -> new AtomicLong()).addAndGet(delta);
+    }
+
+    public static long get(String name) {
+        final AtomicLong counter = COUNTERS.get(name);
+        return counter != null ? counter.get() : 0;
+    }
+
+    public static Json snapshot() {
+        final Json json = Json.map();
+        for (Map.Entry<String, AtomicLong> counter : new TreeMap<>(COUNTERS).entrySet()) {
+            json.set(counter.getKey(), counter.getValue().get());
+        }
+        return json;
+    }
+}
@@ -0,0 +1,203 @@
+package io.slingr.endpoints.googledrive.services.utils;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+import okhttp3.*;
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>HTTP transport that multiplexes concurrent requests over HTTP/2 connections
+ *
+ * <p>Requests to the same host share a single connection instead of taking one socket each. Servers
+ * that do not negotiate HTTP/2 are reached over HTTP/1.1 with a connection pool.
+ */
+public class Http2Transport extends HttpTransport {
+
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final int MAX_REQUESTS_PER_HOST = 64;
+
+    private final OkHttpClient client;
+
+    public Http2Transport() {
+        this(defaultClient());
+    }
+
+    public Http2Transport(OkHttpClient client) {
+        this.client = client;
+    }
+
+    private static OkHttpClient defaultClient() {
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        return new OkHttpClient.Builder()
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .dispatcher(dispatcher)
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new Http2Request(client, method, url);
+    }
+
+    @Override
+    public void shutdown() {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    private static class Http2Request extends LowLevelHttpRequest {
+        private final OkHttpClient client;
+        private final String method;
+        private final String url;
+        private final Headers.Builder headers = new Headers.Builder();
+        private int connectTimeout = -1;
+        private int readTimeout = -1;
+
+        private Http2Request(OkHttpClient client, String method, String url) {
+            this.client = client;
+            this.method = method;
+            this.url = url;
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            headers.add(name, value);
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            RequestBody body = null;
+            final StreamingContent content = getStreamingContent();
+            if (content != null) {
+                final MediaType mediaType = getContentType() != null ? MediaType.parse(getContentType()) : null;
+                final long contentLength = getContentLength();
+                body = new RequestBody() {
+                    @Override
+                    public MediaType contentType() {
+                        return mediaType;
+                    }
+
+                    @Override
+                    public long contentLength() {
+                        return contentLength;
+                    }
+
+                    @Override
+                    public void writeTo(BufferedSink sink) throws IOException {
+                        content.writeTo(sink.outputStream());
+                    }
+                };
+                if (getContentEncoding() != null) {
+                    headers.set("Content-Encoding", getContentEncoding());
+                }
+            } else if ("POST".equals(method) || "PUT".equals(method) || "PATCH".equals(method)) {
+                body = RequestBody.create(null, new byte[0]);
+            }
+            final Request request = new Request.Builder()
+                    .url(url)
+                    .headers(headers.build())
+                    .method(method, body)
+                    .build();
+
+            OkHttpClient requestClient = client;
+            final Deadline deadline = Deadline.current();
+            if (connectTimeout >= 0 || readTimeout >= 0 || deadline != null) {
+                // the derived client shares the connection pool and dispatcher
+                final OkHttpClient.Builder builder = client.newBuilder()
+                        .connectTimeout(Math.max(0, connectTimeout), TimeUnit.MILLISECONDS)
+                        .readTimeout(Math.max(0, readTimeout), TimeUnit.MILLISECONDS);
+                if (deadline != null) {
+                    // the whole call, including the body of the response, is cancelled when the deadline passes
+                    builder.callTimeout(Math.max(1, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+                }
+                requestClient = builder.build();
+            }
+            return new Http2Response(requestClient.newCall(request).execute());
+        }
+    }
+
+    private static class Http2Response extends LowLevelHttpResponse {
+        private final Response response;
+
+        private Http2Response(Response response) {
+            this.response = response;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return response.body() != null ? response.body().byteStream() : null;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return response.header("Content-Encoding");
+        }
+
+        @Override
+        public long getContentLength() {
+            return response.body() != null ? response.body().contentLength() : 0;
+        }
+
+        @Override
+        public String getContentType() {
+            return response.header("Content-Type");
+        }
+
+        @Override
+        public String getStatusLine() {
+            return response.protocol() + " " + response.code() + " " + response.message();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.code();
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return response.message();
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return response.headers().size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return response.headers().name(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return response.headers().value(index);
+        }
+
+        @Override
+        public void disconnect() {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.slingr.endpoints.googledrive.services.utils;
+
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.jackson.JacksonFactory;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * <p>HTTP transport and JSON factory shared by all the Google clients of the endpoint
+ *
+ * <p>Building a trusted transport loads the trust store, and connections can only be reused
+ * between requests that use the same transport, so a single instance is kept for the process.
+ * The transport can be HTTP/1.1 with a connection pool (default) or HTTP/2 with multiplexed
+ * connections, see {@link #configure(String)}.
+ *
+ * <p>Media transfers use {@link #transfers()}. With HTTP/2 it has its own connections, so large
+ * streams do not share the multiplexed connections used by metadata requests. With HTTP/1.1 each
+ * request already takes its own connection, so the same transport is used.
+ */
+public class HttpTransports {
+
+    public static final String HTTP_1 = "http1";
+    public static final String HTTP_2 = "http2";
+
+    private static volatile HttpTransport trusted;
+    private static volatile HttpTransport transfers;
+    private static volatile String type = HTTP_1;
+    private static final JacksonFactory JSON_FACTORY = new JacksonFactory();
+
+    /**
+     * Selects the transport used by the Google clients. It must be called before the first request.
+     *
+     * @param transportType {@link #HTTP_1} or {@link #HTTP_2}, any other value selects HTTP/1.1
+     */
+    public static synchronized void configure(String transportType) {
+        final String selected = HTTP_2.equalsIgnoreCase(transportType) ? HTTP_2 : HTTP_1;
+        if (!selected.equals(type)) {
+            shutdown();
+            type = selected;
+        }
+    }
+
+    public static String getType() {
+        return type;
+    }
+
+    public static synchronized void shutdown() {
+        shutdown(trusted);
+        trusted = null;
+        shutdown(transfers);
+        transfers = null;
+    }
+
+    private static void shutdown(HttpTransport transport) {
+        if (transport != null) {
+            try {
+                transport.shutdown();
+            } catch (IOException e) {
+                // nothing else to release
+            }
+        }
+    }
+
+    public static HttpTransport trusted() throws GeneralSecurityException, IOException {
+        HttpTransport transport = trusted;
+        if (transport == null) {
+            synchronized (HttpTransports.class) {
+                transport = trusted;
+                if (transport == null) {
+                    transport = HTTP_2.equals(type) ? new Http2Transport() : GoogleNetHttpTransport.newTrustedTransport();
+                    trusted = transport;
+                }
+            }
+        }
+        return transport;
+    }
+
+    public static HttpTransport transfers() throws GeneralSecurityException, IOException {
+        if (!HTTP_2.equals(type)) {
+            return trusted();
+        }
+        HttpTransport transport = transfers;
+        if (transport == null) {
+            synchronized (HttpTransports.class) {
+                transport = transfers;
+                if (transport == null) {
+                    transport = new Http2Transport();
+                    transfers = transport;
+                }
+            }
+        }
+        return transport;
+    }
+
+    public static JacksonFactory jsonFactory() {
+        return JSON_FACTORY;
+    }
+}
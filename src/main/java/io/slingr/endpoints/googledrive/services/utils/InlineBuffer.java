@@ -0,0 +1,111 @@
+package io.slingr.endpoints.googledrive.services.utils;
+
+import java.io.*;
+
+/**
+ * <p>Buffer for content that is returned inline when it is small
+ *
+ * <p>Content is kept in memory up to a maximum size. When it grows over it, what was written is moved
+ * to a temporary file and the rest of the content is written there, so only small content is held in
+ * memory. The temporary file is deleted when the buffer is closed.
+ */
+public class InlineBuffer implements AutoCloseable {
+
+    private final long maxSize;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File file;
+    private OutputStream fileOut;
+    private long size = 0;
+
+    public InlineBuffer(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (memory != null && size + len > maxSize) {
+                spill();
+            }
+            if (memory != null) {
+                memory.write(b, off, len);
+            } else {
+                fileOut.write(b, off, len);
+            }
+            size += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (fileOut != null) {
+                fileOut.flush();
+            }
+        }
+    };
+
+    private void spill() throws IOException {
+        file = File.createTempFile("googleinline-", "");
+        fileOut = new BufferedOutputStream(new FileOutputStream(file));
+        memory.writeTo(fileOut);
+        memory = null;
+    }
+
+    /**
+     * Stream where the content is written. It does not need to be closed, {@link #open()} and
+     * {@link #toByteArray()} finish the writing.
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * @return true if the content fits in the maximum size and is kept in memory
+     */
+    public boolean isInline() {
+        return memory != null;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the content, only if it is inline
+     */
+    public byte[] toByteArray() {
+        if (memory == null) {
+            throw new IllegalStateException("Content is not inline");
+        }
+        return memory.toByteArray();
+    }
+
+    /**
+     * Opens the content, from memory or from the temporary file
+     */
+    public InputStream open() throws IOException {
+        if (memory != null) {
+            return new ByteArrayInputStream(memory.toByteArray());
+        }
+        fileOut.close();
+        return new FileInputStream(file);
+    }
+
+    @Override
+    public void close() {
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+}
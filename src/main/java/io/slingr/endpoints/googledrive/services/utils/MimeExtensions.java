@@ -0,0 +1,112 @@
+package io.slingr.endpoints.googledrive.services.utils;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.tika.mime.MimeTypes;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>File extensions for mime types
+ *
+ * <p>The export formats supported by Google are resolved from a precomputed table. Other mime types
+ * are resolved with Tika the first time they are used and remembered.
+ */
+public class MimeExtensions {
+
+    private static final Map<String, String> EXTENSIONS = new HashMap<>();
+    static {
+        EXTENSIONS.put("application/pdf", ".pdf");
+        EXTENSIONS.put("application/zip", ".zip");
+        EXTENSIONS.put("application/epub+zip", ".epub");
+        EXTENSIONS.put("application/rtf", ".rtf");
+        EXTENSIONS.put("application/json", ".json");
+        EXTENSIONS.put("application/vnd.google-apps.script+json", ".json");
+        EXTENSIONS.put("application/vnd.oasis.opendocument.text", ".odt");
+        EXTENSIONS.put("application/vnd.oasis.opendocument.spreadsheet", ".ods");
+        EXTENSIONS.put("application/x-vnd.oasis.opendocument.spreadsheet", ".ods");
+        EXTENSIONS.put("application/vnd.oasis.opendocument.presentation", ".odp");
+        EXTENSIONS.put("application/vnd.openxmlformats-officedocument.wordprocessingml.document", ".docx");
+        EXTENSIONS.put("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", ".xlsx");
+        EXTENSIONS.put("application/vnd.openxmlformats-officedocument.presentationml.presentation", ".pptx");
+        EXTENSIONS.put("application/msword", ".doc");
+        EXTENSIONS.put("application/vnd.ms-excel", ".xls");
+        EXTENSIONS.put("application/vnd.ms-powerpoint", ".ppt");
+        EXTENSIONS.put("text/plain", ".txt");
+        EXTENSIONS.put("text/csv", ".csv");
+        EXTENSIONS.put("text/tab-separated-values", ".tsv");
+        EXTENSIONS.put("text/html", ".html");
+        EXTENSIONS.put("image/png", ".png");
+        EXTENSIONS.put("image/jpeg", ".jpg");
+        EXTENSIONS.put("image/svg+xml", ".svg");
+    }
+
+    private static final Map<String, String> RESOLVED = new ConcurrentHashMap<>(EXTENSIONS);
+
+    /**
+     * @param mimeType mime type
+     * @return extension including the dot, or an empty string if it is not known
+     */
+    public static String extension(String mimeType) {
+        if (StringUtils.isBlank(mimeType)) {
+            return "";
+        }
+        return RESOLVED.computeIfAbsent(mimeType.toLowerCase(), MimeExtensions::lookup);
+    }
+
+    /**
+     * Appends the extension of the mime type to the file name, if it does not have it already
+     */
+    public static String withExtension(String fileName, String mimeType) {
+        final String extension = extension(mimeType);
+        if (extension.isEmpty() || fileName.toLowerCase().endsWith(extension)) {
+            return fileName;
+        }
+        return fileName + extension;
+    }
+
+    /**
+     * @return true if content of the mime type is text, that can be returned as a string
+     */
+    public static boolean isText(String mimeType) {
+        if (StringUtils.isBlank(mimeType)) {
+            return false;
+        }
+        final String type = StringUtils.substringBefore(mimeType, ";").trim().toLowerCase();
+        return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml")
+                || type.equals("application/json") || type.equals("application/xml")
+                || type.equals("application/javascript") || type.equals("application/x-yaml");
+    }
+
+    /**
+     * @return the charset of the {@code charset} parameter of the mime type, UTF-8 if it does not have
+     * one, or null if the charset is not supported
+     */
+    public static Charset charset(String mimeType) {
+        if (StringUtils.isNotBlank(mimeType)) {
+            for (String parameter : StringUtils.split(mimeType, ';')) {
+                final String[] parts = StringUtils.split(parameter.trim(), "=", 2);
+                if (parts.length == 2 && "charset".equalsIgnoreCase(parts[0].trim())) {
+                    final String name = StringUtils.strip(parts[1].trim(), "\"");
+                    try {
+                        return Charset.forName(name);
+                    } catch (IllegalArgumentException e) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private static String lookup(String mimeType) {
+        try {
+            return MimeTypes.getDefaultMimeTypes().forName(mimeType).getExtension();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+}
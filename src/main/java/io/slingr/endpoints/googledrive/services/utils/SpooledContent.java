@@ -0,0 +1,62 @@
+package io.slingr.endpoints.googledrive.services.utils;
+
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>Content copied to a temporary file, with its size and MD5 checksum calculated during the copy
+ *
+ * <p>The temporary file is deleted when the content is closed.
+ */
+public class SpooledContent implements AutoCloseable {
+
+    private final File file;
+    private final long size;
+    private final String md5;
+
+    private SpooledContent(File file, long size, String md5) {
+        this.file = file;
+        this.size = size;
+        this.md5 = md5;
+    }
+
+    public static SpooledContent spool(InputStream content) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 algorithm is not available", e);
+        }
+        final File file = File.createTempFile("googlespool-", "");
+        try (InputStream in = new DigestInputStream(content, digest); OutputStream out = new FileOutputStream(file)) {
+            final long size = StreamUtils.copy(in, out);
+            return new SpooledContent(file, size, StreamUtils.toHex(digest.digest()));
+        } catch (IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    public InputStream open() throws IOException {
+        return new FileInputStream(file);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    @Override
+    public void close() {
+        file.delete();
+    }
+}
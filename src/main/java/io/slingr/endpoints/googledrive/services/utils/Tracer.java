@@ -0,0 +1,279 @@
+package io.slingr.endpoints.googledrive.services.utils;
+
+import io.slingr.endpoints.utils.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>Span tracing of the function calls, for the calls that are slower than a threshold
+ *
+ * <p>A trace is started for each function call, and the phases of the call (token checks, data store
+ * access, requests to Google, transfers to Slingr) open spans in it. When the call finishes, the trace
+ * is exported only if it took longer than the threshold, in the Zipkin v2 JSON format, to the log or to
+ * a file. When tracing is disabled no trace is started and spans are a shared no-op object, so the only
+ * cost is a thread-local lookup per span. Work handed to other threads must carry the trace with
+ * {@link #propagate(Callable)}, which {@link Deadline#propagate(Callable)} already does.
+ */
+public final class Tracer {
+
+    private static final Logger logger = LoggerFactory.getLogger(Tracer.class);
+
+    private static final String SERVICE_NAME = "google-drive-endpoint";
+    private static final int MAX_SPANS = 1000;
+    private static final long MAX_FILE_SIZE = 50L * 1024 * 1024;
+
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+    private static final AtomicReference<Config> CONFIG = new AtomicReference<>(new Config(-1, null));
+
+    private Tracer() {
+    }
+
+    private static final class Config {
+        private final long thresholdMillis;
+        // null to export to the log
+        private final Path file;
+
+        private Config(long thresholdMillis, Path file) {
+            this.thresholdMillis = thresholdMillis;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Enables the slow request sampler
+     *
+     * @param thresholdMillis traces of calls that take longer than this are exported, a negative
+     *                        value disables tracing
+     * @param file file where traces are appended, one per line, or null to write them to the log
+     */
+    public static void configure(long thresholdMillis, Path file) {
+        CONFIG.set(new Config(thresholdMillis, file));
+    }
+
+    public static boolean isEnabled() {
+        return CONFIG.get().thresholdMillis >= 0;
+    }
+
+    /**
+     * Span of a phase. Closing it records its duration. Spans are not thread safe, each one must be
+     * opened and closed by the same thread.
+     */
+    public static final class Span implements AutoCloseable {
+        private final Trace trace;
+        private final Span parent;
+        private final String id;
+        private final String name;
+        private final long startMicros;
+        private final long startNanos;
+        private long durationMicros = -1;
+        private Map<String, String> tags;
+
+        private Span(Trace trace, Span parent, String name) {
+            this.trace = trace;
+            this.parent = parent;
+            this.id = trace != null ? newId() : null;
+            this.name = name;
+            this.startMicros = trace != null ? System.currentTimeMillis() * 1000 : 0;
+            this.startNanos = trace != null ? System.nanoTime() : 0;
+        }
+
+        public Span tag(String key, Object value) {
+            if (trace != null && value != null) {
+                if (tags == null) {
+                    tags = new TreeMap<>();
+                }
+                tags.put(key, String.valueOf(value));
+            }
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (trace == null || durationMicros >= 0) {
+                return;
+            }
+            durationMicros = Math.max(1, (System.nanoTime() - startNanos) / 1000);
+            if (CURRENT.get() == this) {
+                restore(parent);
+            }
+            trace.add(this);
+        }
+
+        private Json toJson() {
+            final Json json = Json.map()
+                    .set("traceId", trace.id)
+                    .set("id", id)
+                    .setIfNotNull("parentId", parent != null ? parent.id : null)
+                    .set("name", name)
+                    .set("timestamp", startMicros)
+                    .set("duration", durationMicros)
+                    .set("localEndpoint", Json.map().set("serviceName", SERVICE_NAME));
+            final Json allTags = Json.map();
+            for (Map.Entry<String, String> tag : trace.tags.entrySet()) {
+                allTags.set(tag.getKey(), tag.getValue());
+            }
+            if (tags != null) {
+                for (Map.Entry<String, String> tag : tags.entrySet()) {
+                    allTags.set(tag.getKey(), tag.getValue());
+                }
+            }
+            return json.set("tags", allTags);
+        }
+    }
+
+    private static final Span NOOP = new Span(null, null, null);
+
+    /**
+     * Trace of a function call. Closing it closes its root span and exports the trace if the call was slow.
+     */
+    public static final class Trace implements AutoCloseable {
+        private final String id = newId() + newId();
+        private final Map<String, String> tags = new TreeMap<>();
+        private final List<Span> spans = new ArrayList<>();
+        private final Config config;
+        private final Span previous;
+        private Span root;
+
+        private Trace(String functionId, String userId, Config config, Span previous) {
+            this.config = config;
+            this.previous = previous;
+            tags.put("functionId", String.valueOf(functionId));
+            tags.put("userId", String.valueOf(userId));
+        }
+
+        private void add(Span span) {
+            synchronized (spans) {
+                if (spans.size() < MAX_SPANS) {
+                    spans.add(span);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            root.close();
+            restore(previous);
+            final long elapsedMillis = root.durationMicros / 1000;
+            if (elapsedMillis < config.thresholdMillis) {
+                return;
+            }
+            EndpointMetrics.increment("tracing.sampled");
+            final List<Json> exported = new ArrayList<>();
+            synchronized (spans) {
+                for (Span span : spans) {
+                    exported.add(span.toJson());
+                }
+            }
+            export(config, Json.fromList(exported).toString(), elapsedMillis);
+        }
+    }
+
+    /**
+     * Starts the trace of a function call in the current thread
+     *
+     * @param name name of the function
+     * @param functionId id of the function call, added to all the spans
+     * @param userId user of the function call, added to all the spans
+     * @return the trace, or null if tracing is disabled (null resources are skipped by try-with-resources)
+     */
+    public static Trace start(String name, String functionId, String userId) {
+        final Config config = CONFIG.get();
+        if (config.thresholdMillis < 0) {
+            return null;
+        }
+        final Trace trace = new Trace(functionId, userId, config, CURRENT.get());
+        // the root span holds the total time of the call
+        trace.root = new Span(trace, null, name);
+        CURRENT.set(trace.root);
+        return trace;
+    }
+
+    /**
+     * Opens a span as a child of the current span of the thread
+     *
+     * @param name name of the phase
+     * @return the span, that must be closed when the phase finishes
+     */
+    public static Span span(String name) {
+        final Span current = CURRENT.get();
+        if (current == null) {
+            return NOOP;
+        }
+        final Span span = new Span(current.trace, current, name);
+        CURRENT.set(span);
+        return span;
+    }
+
+    /**
+     * Opens a span as a child of the current span, without making it the current span. It is meant
+     * for phases that start and finish in callbacks, like HTTP requests, and have no children.
+     */
+    public static Span leaf(String name) {
+        final Span current = CURRENT.get();
+        return current != null ? new Span(current.trace, current, name) : NOOP;
+    }
+
+    /**
+     * Wraps a task so its spans are added to the trace of the thread that creates it
+     */
+    public static <T> Callable<T> propagate(Callable<T> task) {
+        final Span current = CURRENT.get();
+        if (current == null) {
+            return task;
+        }
+        return () -> {
+            final Span previous = CURRENT.get();
+            CURRENT.set(current);
+            try {
+                return task.call();
+            } finally {
+                restore(previous);
+            }
+        };
+    }
+
+    private static void restore(Span span) {
+        if (span != null) {
+            CURRENT.set(span);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    private static synchronized void export(Config config, String spans, long elapsedMillis) {
+        if (config.file == null) {
+            logger.info(String.format("Slow request trace [%s ms] %s", elapsedMillis, spans));
+            return;
+        }
+        try {
+            if (Files.exists(config.file) && Files.size(config.file) > MAX_FILE_SIZE) {
+                Files.move(config.file, config.file.resolveSibling(config.file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (Writer writer = Files.newBufferedWriter(config.file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(spans);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("Trace could not be written to [%s] [%s]", config.file, e.getMessage()));
+        }
+    }
+
+    private static String newId() {
+        return String.format("%016x", ThreadLocalRandom.current().nextLong());
+    }
+}
@@ -0,0 +1,64 @@
+package io.slingr.endpoints.googledrive.services.utils;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.exceptions.ErrorCode;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Limits the number of bytes that are transferred at the same time
+ *
+ * <p>The budget is accounted in kilobytes. A transfer bigger than the whole budget takes all of it,
+ * so it runs alone instead of being blocked forever. A transfer waits for the budget at most until the
+ * deadline of the function call, and it is rejected with a retryable error if the budget is not
+ * released by then.
+ */
+public class TransferBudget {
+
+    public interface Lease extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    // wait when there is no deadline, for work that runs outside of a function call
+    private static final long MAX_WAIT = 5 * 60 * 1000;
+
+    private final int capacity;
+    private final Semaphore permits;
+
+    public TransferBudget(long capacityBytes) {
+        this.capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, capacityBytes / 1024));
+        this.permits = new Semaphore(capacity, true);
+    }
+
+    public Lease acquire(long bytes) {
+        final int kilobytes = (int) Math.max(1, Math.min(capacity, (bytes + 1023) / 1024));
+        final Deadline deadline = Deadline.current();
+        try {
+            final boolean acquired = deadline != null
+                    ? permits.tryAcquire(kilobytes, Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS)
+                    : permits.tryAcquire(kilobytes, MAX_WAIT, TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                throw reject("no budget was released in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject("interrupted while waiting");
+        }
+        return () -> permits.release(kilobytes);
+    }
+
+    private static EndpointException reject(String reason) {
+        EndpointMetrics.increment("transferBudget.rejected");
+        return EndpointException.retryable(ErrorCode.API, String.format("Too many bytes in transfer, %s. Try again later.", reason)).returnCode(503);
+    }
+
+    public long getCapacityBytes() {
+        return capacity * 1024L;
+    }
+
+    public long getAvailableBytes() {
+        return permits.availablePermits() * 1024L;
+    }
+}
@@ -0,0 +1,144 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.exceptions.EndpointException;
+import io.slingr.endpoints.googledrive.services.utils.EndpointMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Load test of the bulkheads: metadata requests neither queue nor get rejected while the other classes
+ * have all their slots taken and their queues full
+ */
+public class BulkheadsLoadTest {
+
+    private static final Bulkheads.OperationClass[] NEIGHBOURS = {
+            Bulkheads.OperationClass.MUTATION,
+            Bulkheads.OperationClass.TRANSFER,
+            Bulkheads.OperationClass.BULK,
+            Bulkheads.OperationClass.AUTH
+    };
+    private static final long WAIT_SECONDS = 10;
+    private static final int BATCH_SIZE = 64;
+
+    private Bulkheads bulkheads;
+    private ExecutorService clients;
+    private final List<Bulkhead.Permit> held = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        bulkheads = new Bulkheads(null);
+        clients = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        held.forEach(Bulkhead.Permit::close);
+        clients.shutdownNow();
+    }
+
+    @Test
+    public void metadataIsNotQueuedWhileTheOtherClassesAreSaturated() throws Exception {
+        final List<Future<?>> waiters = new ArrayList<>();
+        for (Bulkheads.OperationClass neighbour : NEIGHBOURS) {
+            waiters.addAll(saturate(neighbour));
+        }
+        final long queued = EndpointMetrics.get("bulkhead.metadata.queued");
+        final long rejected = EndpointMetrics.get("bulkhead.metadata.rejected");
+
+        // as many metadata requests as slots, all of them at the same time
+        final Bulkhead metadata = bulkheads.get(Bulkheads.OperationClass.METADATA);
+        final CountDownLatch acquired = new CountDownLatch(metadata.getMaxConcurrent());
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Future<?>> requests = new ArrayList<>();
+        for (int i = 0; i < metadata.getMaxConcurrent(); i++) {
+            requests.add(clients.submit(() -> {
+                try (Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.METADATA)) {
+                    acquired.countDown();
+                    release.await(WAIT_SECONDS, TimeUnit.SECONDS);
+                }
+                return null;
+            }));
+        }
+        assertTrue("metadata requests must get a slot", acquired.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        release.countDown();
+        for (Future<?> request : requests) {
+            request.get(WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+        assertEquals("metadata requests must not queue", queued, EndpointMetrics.get("bulkhead.metadata.queued"));
+        assertEquals("metadata requests must not be rejected", rejected, EndpointMetrics.get("bulkhead.metadata.rejected"));
+
+        // the queued operations of the other classes run once their slots are released
+        held.forEach(Bulkhead.Permit::close);
+        held.clear();
+        for (Future<?> waiter : waiters) {
+            waiter.get(WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void batchDoesNotQueueItsOwnItems() throws Exception {
+        final long queued = EndpointMetrics.get("bulkhead.bulk.queued");
+        final long rejected = EndpointMetrics.get("bulkhead.bulk.rejected");
+
+        // workers limited to the concurrency of the bulk class, like bulk functions
+        final int workers = bulkheads.get(Bulkheads.OperationClass.BULK).getMaxConcurrent();
+        final ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            final List<Future<?>> items = new ArrayList<>();
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                items.add(pool.submit(() -> {
+                    try (Bulkhead.Permit permit = bulkheads.acquire(Bulkheads.OperationClass.BULK)) {
+                        Thread.sleep(1);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> item : items) {
+                item.get(WAIT_SECONDS, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(queued, EndpointMetrics.get("bulkhead.bulk.queued"));
+        assertEquals(rejected, EndpointMetrics.get("bulkhead.bulk.rejected"));
+    }
+
+    /**
+     * Takes all the slots of the class and fills its queue, and checks the next operation is rejected
+     *
+     * @return operations waiting in the queue
+     */
+    private List<Future<?>> saturate(Bulkheads.OperationClass operationClass) throws Exception {
+        final Bulkhead bulkhead = bulkheads.get(operationClass);
+        for (int i = 0; i < bulkhead.getMaxConcurrent(); i++) {
+            held.add(bulkhead.acquire());
+        }
+        final int maxQueued = bulkhead.toJson().integer("maxQueued");
+        final List<Future<?>> waiters = new ArrayList<>();
+        for (int i = 0; i < maxQueued; i++) {
+            waiters.add(clients.submit(() -> {
+                bulkhead.acquire().close();
+                return null;
+            }));
+        }
+        final long end = System.currentTimeMillis() + WAIT_SECONDS * 1000;
+        while (bulkhead.toJson().integer("queued") < maxQueued) {
+            assertTrue(String.format("queue of [%s] not filled", bulkhead.getName()), System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+        try {
+            bulkhead.acquire().close();
+            fail(String.format("[%s] must reject operations when its queue is full", bulkhead.getName()));
+        } catch (EndpointException e) {
+            // expected
+        }
+        return waiters;
+    }
+}
@@ -0,0 +1,96 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.utils.Json;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * A job running when the endpoint stops is resumed by the next instance from its checkpoint
+ */
+public class JobManagerTest {
+
+    private static final String USER_ID = "user";
+    private static final String TYPE = "slow";
+    private static final long WAIT_SECONDS = 10;
+
+    /**
+     * Stores copies of the records, like the data store does
+     */
+    private static final class InMemoryStore implements JobManager.Store {
+        private final Map<String, String> records = new ConcurrentHashMap<>();
+
+        @Override
+        public Json find(String id) {
+            final String record = records.get(id);
+            return record != null ? Json.parse(record) : null;
+        }
+
+        @Override
+        public void save(Json record) {
+            records.put(record.string("_id"), record.toString());
+        }
+    }
+
+    private final InMemoryStore store = new InMemoryStore();
+    private JobManager first;
+    private JobManager second;
+
+    @After
+    public void tearDown() {
+        if (first != null) {
+            first.stop();
+        }
+        if (second != null) {
+            second.stop();
+        }
+    }
+
+    @Test
+    public void runningJobIsResumedAfterRestart() throws Exception {
+        final AtomicInteger firstFinished = new AtomicInteger();
+        final CountDownLatch running = new CountDownLatch(1);
+        first = new JobManager(store, "first", (userId, job) -> firstFinished.incrementAndGet(), 1, 4);
+        first.register(TYPE, job -> {
+            job.checkpoint(Json.map().set("step", 1), null);
+            running.countDown();
+            // a long slice, only the stop of the endpoint ends it
+            Thread.sleep(60 * 1000);
+            return Json.map();
+        });
+        final String jobId = first.submit(USER_ID, TYPE, Json.map()).string("jobId");
+        assertTrue(running.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        first.stop();
+        final Json stopped = store.find("job-" + jobId);
+        assertEquals(JobManager.STATUS_QUEUED, stopped.string("status"));
+        assertNull(stopped.string("owner"));
+        assertTrue(store.find("jobs-index").strings("jobs").contains(jobId));
+        assertEquals(0, firstFinished.get());
+
+        // the next instance takes the job without waiting for the lease and resumes it from its checkpoint
+        final CountDownLatch finished = new CountDownLatch(1);
+        final Json[] result = new Json[1];
+        second = new JobManager(store, "second", (userId, job) -> {
+            result[0] = job;
+            finished.countDown();
+        }, 1, 4);
+        second.register(TYPE, job -> Json.map().set("resumedFrom", job.getCheckpoint()));
+        second.start();
+        assertTrue(finished.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        assertEquals(JobManager.STATUS_COMPLETED, result[0].string("status"));
+        assertEquals(Long.valueOf(1), result[0].json("result").json("resumedFrom").longInteger("step"));
+        assertEquals(0, firstFinished.get());
+        final List<String> index = store.find("jobs-index").strings("jobs");
+        assertFalse(index.contains(jobId));
+    }
+}
@@ -0,0 +1,184 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.googledrive.services.entities.ValidToken;
+import io.slingr.endpoints.utils.Json;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two instances of the endpoint refreshing the token of the same user over a shared in-memory data store
+ */
+public class TokenRefreshCoordinatorTest {
+
+    private static final String USER_ID = "user";
+    private static final long LONG_LEASE = 10 * 1000;
+    private static final long SHORT_LEASE = 200;
+    private static final int ROUNDS = 20;
+
+    /**
+     * Stores copies of the configurations, like the data store does
+     */
+    private static final class InMemoryStore implements TokenRefreshCoordinator.UserStore {
+        private final Map<String, String> configurations = new ConcurrentHashMap<>();
+
+        @Override
+        public Json find(String userId) {
+            final String configuration = configurations.get(userId);
+            return configuration != null ? Json.parse(configuration) : null;
+        }
+
+        @Override
+        public Json save(Json configuration) {
+            configurations.put(configuration.string("_id"), configuration.toString());
+            return Json.parse(configuration.toString());
+        }
+    }
+
+    private InMemoryStore store;
+    private final AtomicInteger refreshes = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        store = new InMemoryStore();
+        store.save(Json.map()
+                .set("_id", USER_ID)
+                .set(ValidToken.TOKEN, "expired")
+                .set(ValidToken.REFRESH_TOKEN, "refresh")
+                .set(ValidToken.EXPIRATION_TIME, ValidToken.formatExpirationTime(System.currentTimeMillis() - 60 * 1000)));
+    }
+
+    @Test
+    public void secondInstanceUsesTheTokenRefreshedByTheFirst() throws Exception {
+        final TokenRefreshCoordinator first = new TokenRefreshCoordinator(store, "first", LONG_LEASE);
+        final TokenRefreshCoordinator second = new TokenRefreshCoordinator(store, "second", LONG_LEASE);
+        final CountDownLatch refreshing = new CountDownLatch(1);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Json> firstResult = executor.submit(() -> first.refresh(USER_ID, null, configuration -> {
+                refreshing.countDown();
+                sleep(500);
+                return token("first-token");
+            }));
+            assertTrue(refreshing.await(5, TimeUnit.SECONDS));
+            // the lease of the first instance is taken, so the second one waits for its token
+            final Json secondResult = second.refresh(USER_ID, null, configuration -> token("second-token"));
+
+            assertEquals("first-token", firstResult.get().string(ValidToken.TOKEN));
+            assertEquals("first-token", secondResult.string(ValidToken.TOKEN));
+            assertEquals(1, refreshes.get());
+            assertEquals(1, TokenRefreshCoordinator.version(store.find(USER_ID)));
+            assertNull(store.find(USER_ID).string(TokenRefreshCoordinator.LEASE_OWNER));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void expiredLeaseIsTakenOverAndTheLateTokenIsDiscarded() throws Exception {
+        final TokenRefreshCoordinator first = new TokenRefreshCoordinator(store, "first", SHORT_LEASE);
+        final TokenRefreshCoordinator second = new TokenRefreshCoordinator(store, "second", SHORT_LEASE);
+        final CountDownLatch refreshing = new CountDownLatch(1);
+        final CountDownLatch secondDone = new CountDownLatch(1);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // the first instance hangs longer than its lease
+            final Future<Json> firstResult = executor.submit(() -> first.refresh(USER_ID, null, configuration -> {
+                refreshing.countDown();
+                try {
+                    secondDone.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return token("first-token");
+            }));
+            assertTrue(refreshing.await(5, TimeUnit.SECONDS));
+            final Json secondResult = second.refresh(USER_ID, null, configuration -> token("second-token"));
+            secondDone.countDown();
+
+            assertEquals("second-token", secondResult.string(ValidToken.TOKEN));
+            // the token saved by the second instance is kept
+            assertEquals("second-token", firstResult.get().string(ValidToken.TOKEN));
+            assertEquals("second-token", store.find(USER_ID).string(ValidToken.TOKEN));
+            assertEquals(1, TokenRefreshCoordinator.version(store.find(USER_ID)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedRefreshReleasesTheLease() {
+        final TokenRefreshCoordinator first = new TokenRefreshCoordinator(store, "first", LONG_LEASE);
+        final TokenRefreshCoordinator second = new TokenRefreshCoordinator(store, "second", LONG_LEASE);
+        try {
+            first.refresh(USER_ID, null, configuration -> {
+                throw new IllegalStateException("Google is not available");
+            });
+            fail("The refresh must fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        final long start = System.currentTimeMillis();
+        final Json result = second.refresh(USER_ID, null, configuration -> token("second-token"));
+        assertEquals("second-token", result.string(ValidToken.TOKEN));
+        // the second instance did not wait for the lease of the first one
+        assertTrue(System.currentTimeMillis() - start < LONG_LEASE);
+    }
+
+    @Test
+    public void concurrentRefreshesSaveOneTokenPerRound() throws Exception {
+        final TokenRefreshCoordinator[] instances = {
+                new TokenRefreshCoordinator(store, "first", LONG_LEASE),
+                new TokenRefreshCoordinator(store, "second", LONG_LEASE)
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(instances.length);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                // both instances got the same token rejected by Google
+                final String rejected = store.find(USER_ID).string(ValidToken.TOKEN);
+                final CyclicBarrier start = new CyclicBarrier(instances.length);
+                final Future<?>[] results = new Future<?>[instances.length];
+                for (int i = 0; i < instances.length; i++) {
+                    final TokenRefreshCoordinator instance = instances[i];
+                    results[i] = executor.submit(() -> {
+                        start.await();
+                        return instance.refresh(USER_ID, rejected, configuration -> token(instance.getInstanceId() + "-" + refreshes.get()));
+                    });
+                }
+                for (Future<?> result : results) {
+                    final Json configuration = (Json) result.get(30, TimeUnit.SECONDS);
+                    assertNotEquals(rejected, configuration.string(ValidToken.TOKEN));
+                }
+                assertNotEquals(rejected, store.find(USER_ID).string(ValidToken.TOKEN));
+                // a conflict can make both instances call Google, but only one token is saved per round
+                assertEquals(round + 1, TokenRefreshCoordinator.version(store.find(USER_ID)));
+            }
+            assertTrue(refreshes.get() >= ROUNDS && refreshes.get() <= ROUNDS * instances.length);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Json token(String token) {
+        refreshes.incrementAndGet();
+        return Json.map()
+                .set(ValidToken.TOKEN, token)
+                .set(ValidToken.REFRESH_TOKEN, "refresh")
+                .set(ValidToken.EXPIRATION_TIME, ValidToken.formatExpirationTime(System.currentTimeMillis() + 3600 * 1000));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package io.slingr.endpoints.googledrive.services;
+
+import io.slingr.endpoints.googledrive.services.entities.ValidToken;
+import io.slingr.endpoints.utils.Json;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrency stress test of the token registry and of the parsing of expiration times
+ */
+public class TokenRegistryStressTest {
+
+    private static final int THREADS = 16;
+    private static final int ITERATIONS = 20000;
+    private static final int USERS = 8;
+
+    @Test
+    public void expirationTimesRoundTripUnderConcurrency() throws Exception {
+        final long base = System.currentTimeMillis();
+        runConcurrently(thread -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                // distinct values per thread, so a shared mutable formatter would mix them up
+                final long expiration = base + thread * 1000003L + i * 7919L;
+                final String formatted = ValidToken.formatExpirationTime(expiration);
+                assertEquals(formatted, expiration, ValidToken.parseExpirationTime(formatted));
+            }
+        });
+    }
+
+    @Test
+    public void configurationsAreParsedUnderConcurrency() throws Exception {
+        final TokenRegistry registry = new TokenRegistry();
+        final long base = System.currentTimeMillis() + 3600 * 1000;
+        runConcurrently(thread -> {
+            final String userId = "user-" + thread;
+            for (int i = 0; i < ITERATIONS / 10; i++) {
+                final long expiration = base + i * 1000L;
+                registry.put(userId, Json.map()
+                        .set(ValidToken.TOKEN, "token-" + expiration)
+                        .set(ValidToken.EXPIRATION_TIME, ValidToken.formatExpirationTime(expiration)));
+                final TokenRegistry.Entry entry = registry.get(userId);
+                assertEquals("token-" + expiration, entry.getToken());
+                assertEquals(expiration, entry.getExpiresAt());
+            }
+        });
+    }
+
+    @Test
+    public void readersNeverSeeTornEntries() throws Exception {
+        final TokenRegistry registry = new TokenRegistry();
+        final long base = System.currentTimeMillis() + 3600 * 1000;
+        runConcurrently(thread -> {
+            final String userId = "user-" + (thread % USERS);
+            for (int i = 0; i < ITERATIONS; i++) {
+                if (thread % 2 == 0) {
+                    final long expiration = base + thread * 1000003L + i;
+                    registry.put(userId, "token-" + expiration, expiration);
+                } else {
+                    final TokenRegistry.Entry entry = registry.get(userId);
+                    if (entry != null) {
+                        // token and expiration are always read from the same write
+                        assertEquals("token-" + entry.getExpiresAt(), entry.getToken());
+                        assertTrue(entry.isValid(System.currentTimeMillis()));
+                    }
+                    final String token = registry.validToken(userId);
+                    if (token != null) {
+                        assertTrue(token.startsWith("token-"));
+                    }
+                }
+            }
+        });
+        assertTrue(registry.size() <= USERS);
+    }
+
+    @Test
+    public void expiredAndRemovedTokensAreNotReturned() throws Exception {
+        final TokenRegistry registry = new TokenRegistry();
+        runConcurrently(thread -> {
+            final String userId = "user-" + thread;
+            for (int i = 0; i < ITERATIONS; i++) {
+                registry.put(userId, "expired", System.currentTimeMillis() - 1);
+                assertNull(registry.validToken(userId));
+                registry.put(userId, "valid", System.currentTimeMillis() + 3600 * 1000);
+                assertEquals("valid", registry.validToken(userId));
+                registry.remove(userId);
+                assertNull(registry.validToken(userId));
+            }
+        });
+        assertEquals(0, registry.size());
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    private static void runConcurrently(Worker worker) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    try {
+                        start.await();
+                        worker.run(thread);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("Concurrent check failed", failure.get());
+        }
+    }
+}
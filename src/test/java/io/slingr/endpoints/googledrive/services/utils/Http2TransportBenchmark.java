@@ -0,0 +1,121 @@
+package io.slingr.endpoints.googledrive.services.utils;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.GenericJson;
+import com.google.api.services.drive.GenericGoogleDriveService;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * <p>Compares the HTTP/1.1 connection pool with the HTTP/2 transport for many concurrent metadata
+ * requests, sent through the same generic client used by {@code _getRequest}
+ *
+ * <p>The server is a local stand-in that answers after a fixed delay, like a metadata call to Drive.
+ * It is not part of the regular test run, run it with:
+ * {@code mvn test -Dtest=Http2TransportBenchmark}
+ */
+public class Http2TransportBenchmark {
+
+    private static final int CONCURRENCY = 64;
+    private static final int REQUESTS = 4000;
+    private static final int WARM_UP_REQUESTS = 200;
+    private static final long SERVER_DELAY_MILLIS = 20;
+    private static final String BODY = "{\"id\":\"file-id\",\"name\":\"report.pdf\",\"mimeType\":\"application/pdf\"}";
+
+    @Test
+    public void http1PoolAgainstHttp2() throws Exception {
+        final Result http1 = run("http1", Collections.singletonList(Protocol.HTTP_1_1), new NetHttpTransport());
+        final OkHttpClient h2Client = new OkHttpClient.Builder()
+                .protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+                .build();
+        h2Client.dispatcher().setMaxRequestsPerHost(CONCURRENCY);
+        final Result http2 = run("http2", Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE), new Http2Transport(h2Client));
+
+        System.out.println(http1);
+        System.out.println(http2);
+        System.out.println(String.format("p99 http2/http1: %.2f, throughput http2/http1: %.2f",
+                (double) http2.p99 / Math.max(1, http1.p99), http2.throughput / http1.throughput));
+    }
+
+    private Result run(String name, List<Protocol> protocols, HttpTransport transport) throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.setProtocols(protocols);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                Thread.sleep(SERVER_DELAY_MILLIS);
+                return new MockResponse().setHeader("Content-Type", "application/json").setBody(BODY);
+            }
+        });
+        server.start();
+        final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+        try {
+            final GenericGoogleDriveService service = new GenericGoogleDriveService("benchmark", "token", transport);
+            final String url = server.url("/drive/v3/files/file-id").toString();
+            send(executor, service, url, WARM_UP_REQUESTS);
+
+            final long start = System.nanoTime();
+            final long[] latencies = send(executor, service, url, REQUESTS);
+            final long elapsedNanos = System.nanoTime() - start;
+            return new Result(name, latencies, elapsedNanos, server.getRequestCount());
+        } finally {
+            executor.shutdownNow();
+            transport.shutdown();
+            server.shutdown();
+        }
+    }
+
+    private static long[] send(ExecutorService executor, GenericGoogleDriveService service, String url, int count) throws Exception {
+        final List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            futures.add(executor.submit(() -> {
+                final long start = System.nanoTime();
+                final GenericJson json = service.generic().get(url).execute();
+                assertEquals("file-id", json.get("id"));
+                return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            }));
+        }
+        final long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            latencies[i] = futures.get(i).get(60, TimeUnit.SECONDS);
+        }
+        return latencies;
+    }
+
+    private static final class Result {
+        private final String name;
+        private final long p50;
+        private final long p99;
+        private final double throughput;
+        private final int serverRequests;
+
+        private Result(String name, long[] latencies, long elapsedNanos, int serverRequests) {
+            Arrays.sort(latencies);
+            this.name = name;
+            this.p50 = latencies[latencies.length / 2];
+            this.p99 = latencies[(int) Math.ceil(latencies.length * 0.99) - 1];
+            this.throughput = latencies.length / (elapsedNanos / 1e9);
+            this.serverRequests = serverRequests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d requests, %d concurrent, p50 %.1f ms, p99 %.1f ms, %.0f requests/s, %d served",
+                    name, REQUESTS, CONCURRENCY, p50 / 1000.0, p99 / 1000.0, throughput, serverRequests);
+        }
+    }
+}